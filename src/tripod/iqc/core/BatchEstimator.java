@@ -0,0 +1,253 @@
+package tripod.iqc.core;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * Run an estimator over every sample of a Reader in parallel. Samples
+ * are read on the calling thread and handed off to a worker pool; at
+ * most capacity samples are in flight at any time so that memory
+ * stays flat no matter how large the input is. Results are delivered
+ * to the listener on the calling thread, either in input order or as
+ * soon as they complete.
+ */
+public class BatchEstimator {
+    private static final Logger logger =
+        Logger.getLogger(BatchEstimator.class.getName());
+
+    public interface EstimatorFactory {
+        Estimator createEstimator ();
+    }
+
+    public interface Listener {
+        void estimated (Batch batch);
+    }
+
+    static public class Batch {
+        final int index; // position of the sample in the input
+        final Sample sample;
+        List<Estimator.Result> results;
+        Throwable error;
+
+        Batch (int index, Sample sample) {
+            this.index = index;
+            this.sample = sample;
+        }
+
+        public int getIndex () { return index; }
+        public Sample getSample () { return sample; }
+        public List<Estimator.Result> getResults () { return results; }
+        public Throwable getError () { return error; }
+    }
+
+    class Task implements Callable<Batch> {
+        final Batch batch;
+
+        Task (Batch batch) {
+            this.batch = batch;
+        }
+
+        public Batch call () {
+            try {
+                batch.results = estimator.get().estimate(batch.sample);
+            }
+            catch (Throwable t) {
+                batch.error = t;
+            }
+            return batch;
+        }
+    }
+
+    private final ExecutorService pool;
+    private final boolean shared; // pool is owned by the caller
+    private final ThreadLocal<Estimator> estimator;
+    private int capacity;
+    private boolean ordered = true;
+
+    public BatchEstimator (EstimatorFactory factory) {
+        this (factory, Runtime.getRuntime().availableProcessors());
+    }
+
+    public BatchEstimator (EstimatorFactory factory, int threads) {
+        this (factory, new ForkJoinPool (threads), false);
+    }
+
+    public BatchEstimator (EstimatorFactory factory, ExecutorService pool) {
+        this (factory, pool, true);
+    }
+
+    BatchEstimator (final EstimatorFactory factory,
+                    ExecutorService pool, boolean shared) {
+        this.pool = pool;
+        this.shared = shared;
+        this.estimator = new ThreadLocal<Estimator> () {
+            @Override
+            protected Estimator initialValue () {
+                return factory.createEstimator();
+            }
+        };
+        capacity = 4*Runtime.getRuntime().availableProcessors();
+    }
+
+    public void setCapacity (int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException
+                ("Bogus capacity: "+capacity);
+        }
+        this.capacity = capacity;
+    }
+    public int getCapacity () { return capacity; }
+
+    // deliver results in input order (default) or as they complete
+    public void setOrdered (boolean ordered) { this.ordered = ordered; }
+    public boolean isOrdered () { return ordered; }
+
+    /**
+     * Estimate every sample available from the reader; return the
+     * number of samples processed.
+     */
+    public int run (Reader reader, Listener listener)
+        throws IOException, InterruptedException {
+        return ordered ? runOrdered (reader, listener)
+            : runUnordered (reader, listener);
+    }
+
+    protected int runOrdered (Reader reader, Listener listener)
+        throws IOException, InterruptedException {
+        Deque<Future<Batch>> pending = new ArrayDeque<Future<Batch>>();
+        int count = 0;
+        try {
+            for (Sample s; (s = reader.read()) != null; ++count) {
+                while (!pending.isEmpty()
+                       && (pending.size() >= capacity
+                           || pending.peek().isDone())) {
+                    listener.estimated(get (pending.poll()));
+                }
+                pending.add(pool.submit
+                            (new Task (new Batch (count, snapshot (s)))));
+            }
+
+            while (!pending.isEmpty()) {
+                listener.estimated(get (pending.poll()));
+            }
+        }
+        finally {
+            for (Future<Batch> f : pending) {
+                f.cancel(true);
+            }
+        }
+        return count;
+    }
+
+    protected int runUnordered (Reader reader, Listener listener)
+        throws IOException, InterruptedException {
+        CompletionService<Batch> service =
+            new ExecutorCompletionService<Batch>(pool);
+        int count = 0, inflight = 0;
+        for (Sample s; (s = reader.read()) != null; ++count) {
+            for (Future<Batch> f; inflight > 0
+                     && (f = inflight >= capacity
+                         ? service.take() : service.poll()) != null; ) {
+                --inflight;
+                listener.estimated(get (f));
+            }
+            service.submit(new Task (new Batch (count, snapshot (s))));
+            ++inflight;
+        }
+
+        for (; inflight > 0; --inflight) {
+            listener.estimated(get (service.take()));
+        }
+        return count;
+    }
+
+    static Batch get (Future<Batch> f) throws InterruptedException {
+        try {
+            return f.get();
+        }
+        catch (ExecutionException ex) {
+            // Task.call() doesn't throw, so this shouldn't happen
+            throw new RuntimeException (ex.getCause());
+        }
+    }
+
+    /*
+     * Readers are free to keep adding measures to a sample they've
+     * already returned (CsvReader does so for each replicate line), so
+     * hand the workers a copy that won't change underneath them.
+     */
+    static Sample snapshot (Sample sample) {
+        Sample s = new Sample (sample.getName())
+            .setComments(sample.getComments())
+            .setStandard(sample.getStandard())
+            .setBlank(sample.getBlank());
+        for (Measure m : sample.getMeasures()) {
+            s.add(m);
+        }
+        return s;
+    }
+
+    public void shutdown () {
+        if (!shared) {
+            pool.shutdown();
+        }
+    }
+
+    public static void main (String[] argv) throws Exception {
+        if (argv.length == 0) {
+            System.err.println("Usage: BatchEstimator FILES...");
+            System.exit(1);
+        }
+
+        BatchEstimator batch = new BatchEstimator (new EstimatorFactory () {
+                public Estimator createEstimator () {
+                    return new LeastSquaresEstimator ();
+                }
+            });
+        try {
+            for (String a : argv) {
+                logger.info("Reading from \""+a+"\"...");
+                Closeable is;
+                Reader reader;
+                if (a.toLowerCase().endsWith(".csv")) {
+                    MappedCsvReader csv = new MappedCsvReader (new File (a));
+                    reader = csv;
+                    is = csv;
+                }
+                else if (a.toLowerCase().endsWith(".iqcb")) {
+                    BinReader bin = new BinReader (new File (a));
+                    reader = bin;
+                    is = bin;
+                }
+                else {
+                    InputStream in = new FileInputStream (a);
+                    reader = new TxtReader (in);
+                    is = in;
+                }
+                long start = System.currentTimeMillis();
+                int count = batch.run(reader, new Listener () {
+                        public void estimated (Batch b) {
+                            if (b.getError() != null) {
+                                logger.warning(b.getSample().getName()+": "
+                                               +b.getError().getMessage());
+                            }
+                            else {
+                                for (Estimator.Result r : b.getResults()) {
+                                    System.out.println(r);
+                                }
+                            }
+                        }
+                    });
+                is.close();
+                logger.info(a+": "+count+" sample(s) estimated in "
+                            +(System.currentTimeMillis()-start)+"ms");
+            }
+        }
+        finally {
+            batch.shutdown();
+        }
+    }
+}
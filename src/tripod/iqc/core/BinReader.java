@@ -0,0 +1,196 @@
+package tripod.iqc.core;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.logging.Logger;
+
+import static tripod.iqc.core.BinWriter.*;
+
+/**
+ * Map a file written by BinWriter and return its samples. The header
+ * and checksum are verified when the file is opened; after that each
+ * sample is assembled straight from the mapped columns.
+ */
+public class BinReader implements Reader, Closeable {
+    private static final Logger logger =
+        Logger.getLogger(BinReader.class.getName());
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final TimeUnit[] UNITS = TimeUnit.values();
+
+    private final FileChannel channel;
+    private final ByteBuffer buf;
+    private final int nsamples, nmeasures;
+    private final String[] strings;
+    // offsets of the sample table and of each measure column
+    private final int samples, time, response, area, isArea, rt,
+        replicate, name, comments, flag, unit, flags;
+    private int next;
+
+    public BinReader (File file) throws IOException {
+        this (new RandomAccessFile (file, "r").getChannel(), true);
+    }
+
+    public BinReader (FileChannel channel) throws IOException {
+        this (channel, false);
+    }
+
+    // an owned channel is closed if the file can't be read
+    BinReader (FileChannel channel, boolean owned) throws IOException {
+        this.channel = channel;
+        boolean ok = false;
+        try {
+            long size = channel.size();
+            if (size < 28 || size > Integer.MAX_VALUE) {
+                throw new IOException ("Bogus file size: "+size);
+            }
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            if (buf.getInt(0) != MAGIC) {
+                throw new IOException ("Not a binary IQC dataset!");
+            }
+            int version = buf.getInt(4);
+            if (version != VERSION) {
+                throw new IOException ("Unsupported version "+version
+                                       +"; expecting "+VERSION);
+            }
+            if (checksum (buf, (int)size - 8) != buf.getLong((int)size - 8)) {
+                throw new IOException ("Checksum mismatch; file is corrupted!");
+            }
+
+            nsamples = buf.getInt(8);
+            nmeasures = buf.getInt(12);
+            strings = new String[buf.getInt(16)];
+            ByteBuffer b = buf.duplicate();
+            b.position(20);
+            byte[] bytes = new byte[256];
+            for (int i = 0; i < strings.length; ++i) {
+                int len = b.getInt();
+                if (bytes.length < len) {
+                    bytes = new byte[len];
+                }
+                b.get(bytes, 0, len);
+                strings[i] = new String (bytes, 0, len, UTF8);
+            }
+
+            samples = b.position();
+            time = samples + 20*nsamples;
+            response = time + 8*nmeasures;
+            area = response + 8*nmeasures;
+            isArea = area + 8*nmeasures;
+            rt = isArea + 8*nmeasures;
+            replicate = rt + 8*nmeasures;
+            name = replicate + 4*nmeasures;
+            comments = name + 4*nmeasures;
+            flag = comments + 4*nmeasures;
+            unit = flag + 4*nmeasures;
+            flags = unit + nmeasures;
+            if (flags + nmeasures != size - 8) {
+                throw new IOException ("Bogus file layout!");
+            }
+            ok = true;
+        }
+        finally {
+            if (!ok && owned) {
+                channel.close();
+            }
+        }
+    }
+
+    static long checksum (ByteBuffer buf, int length) {
+        CRC32 crc = new CRC32 ();
+        byte[] chunk = new byte[1<<16];
+        ByteBuffer b = buf.duplicate();
+        b.position(0);
+        for (int pos = 0; pos < length; ) {
+            int n = Math.min(chunk.length, length - pos);
+            b.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+            pos += n;
+        }
+        return crc.getValue();
+    }
+
+    public int size () { return nsamples; }
+
+    public Sample read () {
+        return next < nsamples ? get (next++) : null;
+    }
+
+    public Sample get (int index) {
+        if (index < 0 || index >= nsamples) {
+            throw new IllegalArgumentException ("Bogus sample: "+index);
+        }
+
+        int pos = samples + 20*index;
+        Sample s = new Sample (string (buf.getInt(pos)));
+        s.setComments(string (buf.getInt(pos+4)));
+        int f = buf.getInt(pos+8);
+        s.setStandard((f & STANDARD) != 0);
+        s.setBlank((f & BLANK) != 0);
+
+        int first = buf.getInt(pos+12), count = buf.getInt(pos+16);
+        for (int i = first; i < first+count; ++i) {
+            s.add(measure (i));
+        }
+        return s;
+    }
+
+    Measure measure (int i) {
+        int f = buf.get(flags+i);
+        Measure m = new Measure (buf.getInt(replicate+4*i));
+        m.setName(string (buf.getInt(name+4*i)));
+        m.setComments(string (buf.getInt(comments+4*i)));
+        m.setFlag(string (buf.getInt(flag+4*i)));
+        m.setBlank((f & IS_BLANK) != 0);
+
+        int u = buf.get(unit+i);
+        m.setTime((f & HAS_TIME) != 0 ? buf.getDouble(time+8*i) : null,
+                  u >= 0 ? UNITS[u] : null);
+        if ((f & HAS_RESPONSE) != 0)
+            m.setResponse(buf.getDouble(response+8*i));
+        if ((f & HAS_AREA) != 0)
+            m.setArea(buf.getDouble(area+8*i));
+        if ((f & HAS_ISAREA) != 0)
+            m.setIsArea(buf.getDouble(isArea+8*i));
+        if ((f & HAS_RT) != 0)
+            m.setRt(buf.getDouble(rt+8*i));
+        return m;
+    }
+
+    String string (int index) {
+        return index < 0 ? null : strings[index];
+    }
+
+    public void close () throws IOException {
+        channel.close();
+    }
+
+    public static void main (String[] argv) throws Exception {
+        if (argv.length == 0) {
+            System.err.println("Usage: BinReader FILES...");
+            System.exit(1);
+        }
+
+        for (String a : argv) {
+            long start = System.currentTimeMillis();
+            BinReader reader = new BinReader (new File (a));
+            try {
+                int measures = 0;
+                for (Sample s; (s = reader.read()) != null; ) {
+                    measures += s.size();
+                }
+                logger.info(a+": "+reader.size()+" sample(s) and "
+                            +measures+" measure(s) read in "
+                            +(System.currentTimeMillis()-start)+"ms");
+            }
+            finally {
+                reader.close();
+            }
+        }
+    }
+}
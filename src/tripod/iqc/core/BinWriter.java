@@ -0,0 +1,196 @@
+package tripod.iqc.core;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.logging.Logger;
+
+/**
+ * Write parsed samples in a compact binary format that BinReader can
+ * map back in without parsing any text. The layout (big endian) is
+ *
+ * <pre>
+ *   int    MAGIC ("IQCB")
+ *   int    VERSION
+ *   int    number of samples (S), measures (M), and strings (N)
+ *   N x    string: int length followed by as many UTF-8 bytes
+ *   S x    sample: int name, int comments, int flags,
+ *                  int first measure, int measure count
+ *   M x    double time, response, area, IS area, rt
+ *   M x    int replicate, name, comments, flag (column by column)
+ *   M x    byte time unit, byte flags (column by column)
+ *   long   CRC32 of everything above
+ * </pre>
+ *
+ * Strings are stored once in a dictionary and referenced by index (-1
+ * for null); missing doubles are NaN and are told apart from real
+ * values with the measure flags.
+ */
+public class BinWriter {
+    private static final Logger logger =
+        Logger.getLogger(BinWriter.class.getName());
+
+    public static final int MAGIC = 0x49514342; // IQCB
+    // 2: IS area is really the IS area (was the area again in 1)
+    public static final int VERSION = 2;
+
+    // sample flags
+    static final int STANDARD = 1;
+    static final int BLANK = 2;
+
+    // measure flags
+    static final int HAS_TIME = 1;
+    static final int HAS_RESPONSE = 2;
+    static final int HAS_AREA = 4;
+    static final int HAS_ISAREA = 8;
+    static final int HAS_RT = 16;
+    static final int IS_BLANK = 32;
+
+    private List<Sample> samples = new ArrayList<Sample>();
+    // readers such as CsvReader return the same sample more than once
+    private Set<Sample> seen = Collections.newSetFromMap
+        (new IdentityHashMap<Sample, Boolean>());
+
+    public BinWriter () {
+    }
+
+    public BinWriter add (Sample sample) {
+        if (seen.add(sample)) {
+            samples.add(sample);
+        }
+        return this;
+    }
+
+    // add every sample available from the reader
+    public int addAll (Reader reader) throws IOException {
+        int count = 0;
+        for (Sample s; (s = reader.read()) != null; ++count) {
+            add (s);
+        }
+        return count;
+    }
+
+    public int size () { return samples.size(); }
+
+    public void write (File file) throws IOException {
+        OutputStream os = new FileOutputStream (file);
+        try {
+            write (os);
+        }
+        finally {
+            os.close();
+        }
+    }
+
+    public void write (OutputStream os) throws IOException {
+        Map<String, Integer> dict = new LinkedHashMap<String, Integer>();
+        int nmeasures = 0;
+        for (Sample s : samples) {
+            index (dict, s.getName());
+            index (dict, s.getComments());
+            for (Measure m : s.getMeasures()) {
+                index (dict, m.getName());
+                index (dict, m.getComments());
+                index (dict, m.getFlag());
+                ++nmeasures;
+            }
+        }
+
+        List<Measure> measures = new ArrayList<Measure>(nmeasures);
+        for (Sample s : samples) {
+            measures.addAll(s.getMeasures());
+        }
+
+        CRC32 crc = new CRC32 ();
+        DataOutputStream dos = new DataOutputStream
+            (new CheckedOutputStream (new BufferedOutputStream (os), crc));
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeInt(samples.size());
+        dos.writeInt(nmeasures);
+        dos.writeInt(dict.size());
+
+        for (String str : dict.keySet()) {
+            byte[] b = str.getBytes("UTF-8");
+            dos.writeInt(b.length);
+            dos.write(b);
+        }
+
+        int first = 0;
+        for (Sample s : samples) {
+            dos.writeInt(index (dict, s.getName()));
+            dos.writeInt(index (dict, s.getComments()));
+            dos.writeInt((s.getStandard() ? STANDARD : 0)
+                         | (s.getBlank() ? BLANK : 0));
+            dos.writeInt(first);
+            dos.writeInt(s.size());
+            first += s.size();
+        }
+
+        for (Measure m : measures) dos.writeDouble(value (m.getTime()));
+        for (Measure m : measures) dos.writeDouble(value (m.getResponse()));
+        for (Measure m : measures) dos.writeDouble(value (m.getArea()));
+        for (Measure m : measures) dos.writeDouble(value (m.getIsArea()));
+        for (Measure m : measures) dos.writeDouble(value (m.getRt()));
+        for (Measure m : measures) dos.writeInt(m.getReplicate());
+        for (Measure m : measures) dos.writeInt(index (dict, m.getName()));
+        for (Measure m : measures)
+            dos.writeInt(index (dict, m.getComments()));
+        for (Measure m : measures) dos.writeInt(index (dict, m.getFlag()));
+        for (Measure m : measures) {
+            dos.writeByte(m.getTimeUnit() != null
+                          ? m.getTimeUnit().ordinal() : -1);
+        }
+        for (Measure m : measures) {
+            dos.writeByte((m.getTime() != null ? HAS_TIME : 0)
+                          | (m.getResponse() != null ? HAS_RESPONSE : 0)
+                          | (m.getArea() != null ? HAS_AREA : 0)
+                          | (m.getIsArea() != null ? HAS_ISAREA : 0)
+                          | (m.getRt() != null ? HAS_RT : 0)
+                          | (m.getBlank() ? IS_BLANK : 0));
+        }
+
+        dos.flush();
+        // the checksum itself isn't part of the checksum
+        dos.writeLong(crc.getValue());
+        dos.flush();
+    }
+
+    static int index (Map<String, Integer> dict, String str) {
+        if (str == null) {
+            return -1;
+        }
+        Integer index = dict.get(str);
+        if (index == null) {
+            dict.put(str, index = dict.size());
+        }
+        return index;
+    }
+
+    static double value (Double v) {
+        return v != null ? v : Double.NaN;
+    }
+
+    public static void main (String[] argv) throws Exception {
+        if (argv.length < 2) {
+            System.err.println("Usage: BinWriter OUTPUT FILES...");
+            System.exit(1);
+        }
+
+        BinWriter writer = new BinWriter ();
+        for (int i = 1; i < argv.length; ++i) {
+            logger.info("Reading from \""+argv[i]+"\"...");
+            InputStream is = new FileInputStream (argv[i]);
+            try {
+                writer.addAll(argv[i].toLowerCase().endsWith(".csv")
+                              ? new CsvReader (is) : new TxtReader (is));
+            }
+            finally {
+                is.close();
+            }
+        }
+        writer.write(new File (argv[0]));
+        logger.info(argv[0]+": "+writer.size()+" sample(s) written");
+    }
+}
@@ -154,19 +154,30 @@ Sample,T0,T0-S,T5,T5-S,T10,T10-S,T15,T15-S,T30,T30-S,T60,T60-S
             reader = new CsvReader (new FileInputStream (argv[0]));
         }
 
-        Estimator estimator = new LeastSquaresEstimator ();
-        int c = 0;
-        for (Sample sampl; (sampl = reader.read()) != null; ) {
-            if (sampl.size() > 2) {
-                List<Estimator.Result> results = estimator.estimate(sampl);
-                for (Estimator.Result res : results) {
-                    System.out.println(res);
-                }
-            }
-            else {
-                logger.warning(sampl.getName()+": too few measurements ("
-                               +sampl.size()+")");
-            }
+        BatchEstimator batch = new BatchEstimator
+            (new BatchEstimator.EstimatorFactory () {
+                    public Estimator createEstimator () {
+                        return new LeastSquaresEstimator ();
+                    }
+                });
+        try {
+            batch.run(reader, new BatchEstimator.Listener () {
+                    public void estimated (BatchEstimator.Batch b) {
+                        Sample sampl = b.getSample();
+                        if (b.getError() != null) {
+                            logger.warning(sampl.getName()+": "
+                                           +b.getError().getMessage());
+                        }
+                        else {
+                            for (Estimator.Result res : b.getResults()) {
+                                System.out.println(res);
+                            }
+                        }
+                    }
+                });
+        }
+        finally {
+            batch.shutdown();
         }
     }
 }
@@ -21,6 +21,16 @@ public interface Estimator {
             this.score = scorer.eval(model);
         }
 
+        // result that has already been scored (e.g., from a cache)
+        Result (Sample sample, Measure[] measures, 
+                int[] config, FitModel model, Double score) {
+            this.sample = sample;
+            this.measures = measures;
+            this.config = (int[])config.clone();
+            this.model = model;
+            this.score = score;
+        }
+
         public Sample getSample () { return sample; }
 
         // unique identifier associated with this result
@@ -9,6 +9,16 @@ import java.util.Observable;
 //   all these auxilary arrays.... don't have it with me right now.
 public class GrayCode extends Observable {
 
+    /**
+     * Callback for binary gray codes. Each code word is passed as a
+     * bit mask along with the index of the bit that was flipped to get
+     * there from the previous word (-1 for the first word) and whether
+     * that bit was set or cleared. Returning false stops the walk.
+     */
+    public interface Visitor {
+	boolean visit (long bits, int flipped, boolean set);
+    }
+
     private int maxsize = 0, size = 0;
     private int[] n, g, u, c;
 
@@ -80,6 +90,69 @@ public class GrayCode extends Observable {
 	}
     }
 
+    /**
+     * Same as generate() but for binary codes of at most 62 bits only
+     * (so that the number of code words is a positive long); the walk
+     * is driven directly off a counter so nothing is copied, allocated,
+     * or synchronized per code word.
+     */
+    public void generate (Visitor visitor) {
+	generate (0l, 1l << c.length, visitor);
+    }
+
+    /**
+     * Visit only the code words of rank [from, to) of a binary gray
+     * code. The first word is passed with flipped = -1 so the visitor
+     * can initialize itself from its bits. Disjoint ranges can thus be
+     * walked independently, e.g., in parallel.
+     */
+    public void generate (long from, long to, Visitor visitor) {
+	int k = c.length;
+	for (int i = 0; i < k; ++i) {
+	    if (n[i] != 2) {
+		throw new IllegalStateException ("Not a binary gray code!");
+	    }
+	}
+	if (k > 62) { // 1l << 63 is negative
+	    throw new IllegalStateException
+		("Binary gray code too large ("+k+")!");
+	}
+	if (from < 0 || from > to || to > (1l << k)) {
+	    throw new IllegalArgumentException
+		("Bogus range ["+from+","+to+")!");
+	}
+
+	for (long i = from; i < to; ) {
+	    int flipped = i == from ? -1 : Long.numberOfTrailingZeros(i);
+	    long bits = unrank (i);
+	    boolean set = flipped >= 0 && (bits & (1l << flipped)) != 0;
+
+	    ++i;
+	    ++size;
+	    if (!visitor.visit(bits, flipped, set)
+		|| (maxsize > 0 && size >= maxsize)) {
+		break;
+	    }
+	}
+    }
+
+    /**
+     * Position of the code word bits in the binary reflected gray code
+     */
+    public static long rank (long bits) {
+	for (int shift = 1; shift < 64; shift <<= 1) {
+	    bits ^= bits >>> shift;
+	}
+	return bits;
+    }
+
+    /**
+     * The code word at position rank of the binary reflected gray code
+     */
+    public static long unrank (long rank) {
+	return rank ^ (rank >>> 1);
+    }
+
     public void setMaxSize (int maxsize) {
 	this.maxsize = maxsize;
     }
@@ -95,12 +168,12 @@ public class GrayCode extends Observable {
         public static void main (final String[] argv) throws Exception {
             // all possible subsets = 2^k
             GrayCode g = createBinaryGrayCode (argv.length);
-            g.addObserver(new Observer () {
-                    public void update (Observable o, Object arg) {
-                        int[] c = (int[])arg;
+            g.generate(new Visitor () {
+                    public boolean visit (long bits, int flipped, 
+                                          boolean set) {
                         int j = 0;
-                        for (int i = 0; i < c.length; ++i) {
-                            if (c[i] != 0) {
+                        for (int i = 0; i < argv.length; ++i) {
+                            if ((bits & (1l << i)) != 0) {
                                 if (j == 0) {
                                     System.out.print("[");
                                 }
@@ -114,9 +187,9 @@ public class GrayCode extends Observable {
                         if (j > 0) {
                             System.out.println("]");
                         }
+                        return true;
                     }
                 });
-            g.generate();
         }
     }
 
@@ -0,0 +1,137 @@
+package tripod.iqc.core;
+
+/**
+ * Simple linear regression over running sums that supports removing
+ * data points in constant time. The estimates follow the same
+ * definitions as commons-math's SimpleRegression so the two can be
+ * used interchangeably; the difference is that a single instance can
+ * be walked along a gray code by adding or removing the one point
+ * that changes at each step.
+ */
+public class IncrementalRegression {
+    static final double EPSILON = 1e-9;
+
+    // origin the sums are accumulated about; choosing it close to the
+    //  data (e.g., the means of all candidate points) keeps the raw
+    //  sums small and the centered sums accurate
+    private final double x0, y0;
+    private int n;
+    private double sumX, sumY, sumXX, sumYY, sumXY;
+
+    public IncrementalRegression () {
+        this (0., 0.);
+    }
+
+    public IncrementalRegression (double x0, double y0) {
+        this.x0 = x0;
+        this.y0 = y0;
+    }
+
+    public void addData (double x, double y) {
+        x -= x0;
+        y -= y0;
+        ++n;
+        sumX += x;
+        sumY += y;
+        sumXX += x*x;
+        sumYY += y*y;
+        sumXY += x*y;
+    }
+
+    public void removeData (double x, double y) {
+        if (n > 0) {
+            x -= x0;
+            y -= y0;
+            --n;
+            sumX -= x;
+            sumY -= y;
+            sumXX -= x*x;
+            sumYY -= y*y;
+            sumXY -= x*y;
+        }
+    }
+
+    public void clear () {
+        n = 0;
+        sumX = sumY = sumXX = sumYY = sumXY = 0.;
+    }
+
+    public int getN () { return n; }
+
+    // centered sums of squares and cross products
+    public double getXSumSquares () {
+        return n > 0 ? sumXX - sumX*sumX/n : 0.;
+    }
+    public double getSumOfCrossProducts () {
+        return n > 0 ? sumXY - sumX*sumY/n : 0.;
+    }
+    public double getTotalSumSquares () {
+        if (n < 2) {
+            return Double.NaN;
+        }
+        return sumYY - sumY*sumY/n;
+    }
+
+    /**
+     * Running sums lose precision to cancellation when the centered
+     * sums are tiny relative to the raw ones, e.g., when all selected
+     * responses are identical. Callers should refit from scratch if
+     * this returns false.
+     */
+    public boolean isWellConditioned () {
+        return getXSumSquares () > EPSILON * sumXX
+            && (sumYY - sumY*sumY/n) > EPSILON * sumYY;
+    }
+
+    public double getSlope () {
+        if (n < 2) {
+            return Double.NaN;
+        }
+        double sxx = getXSumSquares ();
+        if (Math.abs(sxx) < 10 * Double.MIN_VALUE) {
+            return Double.NaN; // not enough variation in x
+        }
+        return getSumOfCrossProducts () / sxx;
+    }
+
+    public double getIntercept () {
+        double slope = getSlope ();
+        return y0 + (sumY - slope * sumX) / n - slope * x0;
+    }
+
+    public double getSumSquaredErrors () {
+        double sxy = getSumOfCrossProducts ();
+        return Math.max(0., (sumYY - sumY*sumY/n)
+                        - sxy * sxy / getXSumSquares ());
+    }
+
+    public double getMeanSquareError () {
+        if (n < 3) {
+            return Double.NaN;
+        }
+        return getSumSquaredErrors () / (n - 2);
+    }
+
+    public double getRSquare () {
+        double ssto = getTotalSumSquares ();
+        return (ssto - getSumSquaredErrors ()) / ssto;
+    }
+
+    public double getR () {
+        double r = Math.sqrt(getRSquare ());
+        if (getSlope () < 0) {
+            r = -r;
+        }
+        return r;
+    }
+
+    public double getSlopeStdErr () {
+        return Math.sqrt(getMeanSquareError () / getXSumSquares ());
+    }
+
+    public double getInterceptStdErr () {
+        double xbar = x0 + sumX / n;
+        return Math.sqrt(getMeanSquareError ()
+                         * (1./n + xbar * xbar / getXSumSquares ()));
+    }
+}
@@ -4,6 +4,7 @@ import java.io.*;
 import java.util.*;
 import java.util.regex.*;
 import java.util.zip.*;
+import java.util.concurrent.*;
 import java.net.URI;
 import java.net.URL;
 import java.util.logging.Logger;
@@ -14,6 +15,15 @@ import org.apache.poi.ss.usermodel.*;
 import org.apache.poi.hssf.usermodel.*;
 import org.apache.poi.xssf.usermodel.*;
 import org.apache.poi.poifs.filesystem.*;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+
+import javax.xml.parsers.SAXParserFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
 
 public class IqcToTxt implements Comparator<IqcToTxt.Sample> {
     static final Logger logger = Logger.getLogger(IqcToTxt.class.getName());
@@ -36,6 +46,7 @@ public class IqcToTxt implements Comparator<IqcToTxt.Sample> {
     }
 
     Map<String, List<Sample>> samples = new TreeMap<String, List<Sample>>();
+    int threads = Runtime.getRuntime().availableProcessors();
 
     public int compare (Sample s1, Sample s2) {
         int d = s1.name.compareTo(s2.name);
@@ -53,61 +64,65 @@ public class IqcToTxt implements Comparator<IqcToTxt.Sample> {
         parse (zf);
     }
 
+    /*
+     * The first sheet of the workbook is streamed through a SAX
+     * handler one row at a time instead of loading the whole workbook
+     * with XSSFWorkbook; only the shared string table is kept in
+     * memory.
+     */
     void parseXlsx (String name, InputStream is) throws Exception {
-        Workbook wb = new XSSFWorkbook (is);
-        Sheet sheet = wb.getSheetAt(0);
-        parseSheet (name, sheet);
+        parseXlsx (name, is, samples);
     }
 
-    void parseSheet (String name, Sheet sheet) throws Exception {
-        int min = -1, repl = 1;
-        Matcher m = MINREGEX.matcher(name);
-        if (m.find()) {
-            min = Integer.parseInt(m.group(1));
-            String g = m.group(3);
-            if (g != null) {
-                repl = Integer.parseInt(g);
+    void parseXlsx (String name, InputStream is,
+                    Map<String, List<Sample>> samples) throws Exception {
+        OPCPackage pkg = OPCPackage.open(is);
+        try {
+            XSSFReader xlsx = new XSSFReader (pkg);
+            java.util.Iterator<InputStream> sheets = xlsx.getSheetsData();
+            if (sheets.hasNext()) {
+                InputStream sheet = sheets.next();
+                try {
+                    SAXParserFactory factory = SAXParserFactory.newInstance();
+                    factory.setNamespaceAware(true);
+                    XMLReader reader = factory.newSAXParser().getXMLReader();
+                    reader.setContentHandler
+                        (new SheetHandler (new ReadOnlySharedStringsTable
+                                           (pkg), new SheetParser (name, samples)));
+                    reader.parse(new InputSource (sheet));
+                }
+                finally {
+                    sheet.close();
+                }
             }
         }
-        name = name.toLowerCase();
-        //System.out.println("++ "+name+" min: "+min+" repl: "+repl);
-        
-        java.util.Iterator<Row> rowIter = sheet.rowIterator();
-        int nrows = 0;
-        Object[] header = null;
-        Object standard = null;
+        finally {
+            pkg.revert(); // read only; nothing to save
+        }
+    }
 
+    void parseSheet (String name, Sheet sheet) throws Exception {
+        SheetParser parser = new SheetParser (name);
+        java.util.Iterator<Row> rowIter = sheet.rowIterator();
         while (rowIter.hasNext()) {
             Row row = rowIter.next();
             //System.err.println("[Row "+row.getRowNum()+"]");
             
             java.util.Iterator<Cell> cellIter = row.cellIterator();
-            List r = new ArrayList ();
-
-            boolean matched = false;
-            for (int col = 0; cellIter.hasNext(); ++col) {
+            List<Object> r = new ArrayList<Object>();
+            while (cellIter.hasNext()) {
                 Cell c = cellIter.next();
-                
-                Object value = null;
                 switch (c.getCellType()) {
                 case Cell.CELL_TYPE_BOOLEAN:
-                    r.add(value = c.getBooleanCellValue());
+                    r.add(c.getBooleanCellValue());
                     break;
                     
                 case Cell.CELL_TYPE_NUMERIC:
-                    r.add(value = c.getNumericCellValue());
+                    r.add(c.getNumericCellValue());
                     break;
                     
                 case Cell.CELL_TYPE_STRING:
-                    { String s = c.getStringCellValue();
-                        r.add(value = s);
-                        if (col == 0) {
-                            int pos = name.indexOf(s.toLowerCase());
-                            if (pos >= 0) {
-                                matched = true;
-                            }
-                        }
-                    }
+                    r.add(c.getStringCellValue());
                     break;
                         
                 case Cell.CELL_TYPE_BLANK:
@@ -121,6 +136,43 @@ public class IqcToTxt implements Comparator<IqcToTxt.Sample> {
                             +c.getColumnIndex()+")="+"\""+value+"\"");
                 */
             }
+            parser.row(r);
+        }
+    }
+
+    /*
+     * Turns the rows of a sheet, one list of cell values per row (with
+     * only the cells present in the sheet), into samples.
+     */
+    class SheetParser {
+        final String name;
+        final Map<String, List<Sample>> samples;
+        int min = -1, repl = 1;
+        int nrows = 0;
+        Object[] header = null;
+        Object standard = null;
+
+        SheetParser (String name) {
+            this (name, IqcToTxt.this.samples);
+        }
+
+        SheetParser (String name, Map<String, List<Sample>> samples) {
+            this.samples = samples;
+            Matcher m = MINREGEX.matcher(name);
+            if (m.find()) {
+                min = Integer.parseInt(m.group(1));
+                String g = m.group(3);
+                if (g != null) {
+                    repl = Integer.parseInt(g);
+                }
+            }
+            this.name = name.toLowerCase();
+            //System.out.println("++ "+name+" min: "+min+" repl: "+repl);
+        }
+
+        void row (List<Object> r) {
+            boolean matched = !r.isEmpty() && r.get(0) instanceof String
+                && name.indexOf(((String)r.get(0)).toLowerCase()) >= 0;
             
             if (nrows == 0) {
                 /*
@@ -164,37 +216,188 @@ public class IqcToTxt implements Comparator<IqcToTxt.Sample> {
         }
     }
 
-    public void parse (ZipFile zf) throws Exception {
+    /*
+     * SAX handler for a worksheet part that converts each <row> into
+     * the same cell values XSSFCell would give parseSheet(): booleans,
+     * numbers, and strings, with null for blank, formula, and error
+     * cells.
+     */
+    static class SheetHandler extends DefaultHandler {
+        final ReadOnlySharedStringsTable strings;
+        final SheetParser parser;
+        final StringBuilder text = new StringBuilder ();
+        List<Object> row;
+        String type; // t attribute of the current cell
+        boolean formula, value, inline, collect;
+
+        SheetHandler (ReadOnlySharedStringsTable strings, SheetParser parser) {
+            this.strings = strings;
+            this.parser = parser;
+        }
+
+        @Override
+        public void startElement (String uri, String localName,
+                                  String qName, Attributes attrs) {
+            if ("row".equals(localName)) {
+                row = new ArrayList<Object>();
+            }
+            else if ("c".equals(localName)) {
+                type = attrs.getValue("t");
+                formula = value = inline = false;
+                text.setLength(0);
+            }
+            else if ("f".equals(localName)) {
+                formula = true;
+            }
+            else if ("v".equals(localName)) {
+                value = collect = true;
+                text.setLength(0);
+            }
+            else if ("is".equals(localName)) {
+                inline = true;
+            }
+            else if ("t".equals(localName) && inline && !value) {
+                collect = true;
+            }
+            else if ("rPh".equals(localName)) {
+                inline = false; // phonetic runs aren't part of the text
+            }
+        }
+
+        @Override
+        public void endElement (String uri, String localName, String qName) {
+            if ("v".equals(localName) || "t".equals(localName)) {
+                collect = false;
+            }
+            else if ("rPh".equals(localName)) {
+                inline = true;
+            }
+            else if ("c".equals(localName)) {
+                row.add(formula ? null : cell ());
+            }
+            else if ("row".equals(localName)) {
+                parser.row(row);
+                row = null;
+            }
+        }
+
+        @Override
+        public void characters (char[] ch, int start, int length) {
+            if (collect) {
+                text.append(ch, start, length);
+            }
+        }
+
+        Object cell () {
+            String v = text.toString();
+            if (type == null || "n".equals(type)) {
+                return value ? Double.parseDouble(v) : null;
+            }
+            if ("s".equals(type)) {
+                return strings.getEntryAt(Integer.parseInt(v));
+            }
+            if ("inlineStr".equals(type) || "str".equals(type)) {
+                return v;
+            }
+            if ("b".equals(type)) {
+                return value && "1".equals(v);
+            }
+            return null; // error
+        }
+    }
+
+    /**
+     * Convert the workbooks of up to this many entries at the same
+     * time; 1 converts them one after another. The output is the same
+     * either way.
+     */
+    public void setThreads (int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException
+                ("Bogus number of threads: "+threads);
+        }
+        this.threads = threads;
+    }
+    public int getThreads () { return threads; }
+
+    public void parse (final ZipFile zf) throws Exception {
         samples.clear();
+        List<ZipEntry> entries = new ArrayList<ZipEntry>();
         for (Enumeration<? extends ZipEntry> en = zf.entries();
              en.hasMoreElements();) {
             ZipEntry ze = en.nextElement();
-            try {
-                String name = ze.getName();
-                if (name.indexOf(".xlsx") > 0) {
-                    //logger.info(name);
-                    parseXlsx (name, zf.getInputStream(ze));
+            if (ze.getName().indexOf(".xlsx") > 0) {
+                entries.add(ze);
+            }
+        }
+
+        if (threads < 2 || entries.size() < 2) {
+            for (ZipEntry ze : entries) {
+                parseEntry (zf, ze, samples);
+            }
+            return;
+        }
+
+        ExecutorService pool = new ForkJoinPool
+            (Math.min(threads, entries.size()));
+        try {
+            List<Future<Map<String, List<Sample>>>> parts =
+                new ArrayList<Future<Map<String, List<Sample>>>>();
+            for (final ZipEntry ze : entries) {
+                parts.add(pool.submit
+                          (new Callable<Map<String, List<Sample>>> () {
+                              public Map<String, List<Sample>> call () {
+                                  Map<String, List<Sample>> part =
+                                      new HashMap<String, List<Sample>>();
+                                  parseEntry (zf, ze, part);
+                                  return part;
+                              }
+                          }));
+            }
+
+            // merge in entry order so that each list ends up exactly as
+            //  a serial parse would have left it
+            for (Future<Map<String, List<Sample>>> f : parts) {
+                for (Map.Entry<String, List<Sample>> me
+                         : f.get().entrySet()) {
+                    List<Sample> list = samples.get(me.getKey());
+                    if (list == null) {
+                        samples.put(me.getKey(), me.getValue());
+                    }
+                    else {
+                        list.addAll(me.getValue());
+                    }
                 }
             }
-            catch (Exception ex) {
-                ex.printStackTrace();
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    void parseEntry (ZipFile zf, ZipEntry ze,
+                     Map<String, List<Sample>> samples) {
+        try {
+            //logger.info(ze.getName());
+            InputStream is = zf.getInputStream(ze);
+            try {
+                parseXlsx (ze.getName(), is, samples);
+            }
+            finally {
+                is.close();
             }
         }
+        catch (Exception ex) {
+            ex.printStackTrace();
+        }
     }
 
     public void write (OutputStream os) throws IOException {
         PrintStream ps = new PrintStream (os);
         ps.println("Sample,T0,T0-S,T5,T5-S,T10,T10-S,T15,T15-S,T30,T30-S,T60,T60-S");
         for (List<Sample> list : samples.values()) {
-            Collections.sort(list, this);
-            Iterator<Sample> it = list.iterator();
-            Map<Integer, Sample> response = new HashMap<Integer, Sample>();
-            for (int c = 0; it.hasNext();++c) {
-                Sample s = it.next();
-                if (c == 0)
-                    ps.print(s.name);
-                response.put(s.min, s);
-            }
+            Map<Integer, Sample> response = responses (list);
+            ps.print(list.get(0).name);
             write (ps, response, 0);
             write (ps, response, 5);
             write (ps, response, 10);
@@ -205,6 +408,19 @@ public class IqcToTxt implements Comparator<IqcToTxt.Sample> {
         }
     }
 
+    /*
+     * Sort the entries of a sample by time point; the last entry of
+     * each time point is the one that's reported.
+     */
+    Map<Integer, Sample> responses (List<Sample> list) {
+        Collections.sort(list, this);
+        Map<Integer, Sample> response = new HashMap<Integer, Sample>();
+        for (Sample s : list) {
+            response.put(s.min, s);
+        }
+        return response;
+    }
+
     static void write (PrintStream ps, Map<Integer, Sample> response, int min) {
         Sample s = response.get(min);
         if (s != null) {
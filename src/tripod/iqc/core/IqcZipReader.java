@@ -0,0 +1,89 @@
+package tripod.iqc.core;
+
+import java.util.*;
+import java.util.zip.ZipFile;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Read samples straight from an instrument export zip (or an already
+ * parsed IqcToTxt) without writing and re-parsing the intermediate
+ * csv. The measures are the same as CsvReader produces from the output
+ * of IqcToTxt.write(), but each sample is returned only once with the
+ * measures of all of its replicates.
+ */
+public class IqcZipReader implements Reader {
+    private static final Logger logger =
+        Logger.getLogger(IqcZipReader.class.getName());
+
+    private Iterator<Sample> samples;
+
+    public IqcZipReader (ZipFile zf) throws Exception {
+        this (new IqcToTxt (zf));
+    }
+
+    public IqcZipReader (IqcToTxt iqc) {
+        Map<String, Sample> samples = new LinkedHashMap<String, Sample>();
+        for (Map.Entry<String, List<IqcToTxt.Sample>> me
+                 : iqc.samples.entrySet()) {
+            String name = me.getKey(); // sample-replicate
+            String sample = name;
+            int repl = 0;
+            int pos = sample.lastIndexOf('-');
+            if (pos > 0) {
+                repl = Integer.parseInt(sample.substring(pos+1)) - 1;
+                sample = sample.substring(0, pos);
+            }
+
+            Sample sampl = samples.get(sample);
+            if (sampl == null) {
+                samples.put(sample, sampl = new Sample (sample));
+            }
+
+            Map<Integer, IqcToTxt.Sample> response =
+                iqc.responses(me.getValue());
+            for (int t : CsvReader.TIMES) {
+                IqcToTxt.Sample s = response.get(t);
+                if (s == null || "N/F".equals(s.value)) {
+                }
+                else if (s.value instanceof Number
+                         && s.standard instanceof Number) {
+                    Measure m = new Measure (repl);
+                    m.setName(name);
+                    m.setTime((double)t, TimeUnit.MINUTES);
+                    m.setResponse(((Number)s.value).doubleValue()
+                                  / ((Number)s.standard).doubleValue());
+                    sampl.add(m);
+                }
+                else {
+                    logger.warning(name+": bogus number at T"+t
+                                   +"; either \""+s.value+"\" or \""
+                                   +s.standard+"\" is bogus!");
+                }
+            }
+        }
+        this.samples = samples.values().iterator();
+    }
+
+    public Sample read () {
+        return samples.hasNext() ? samples.next() : null;
+    }
+
+    public static void main (String[] argv) throws Exception {
+        if (argv.length == 0) {
+            System.err.println("Usage: IqcZipReader ZIPS...");
+            System.exit(1);
+        }
+
+        Estimator estimator = new LeastSquaresEstimator ();
+        for (String a : argv) {
+            logger.info("Reading from \""+a+"\"...");
+            Reader reader = new IqcZipReader (new ZipFile (a));
+            for (Sample sampl; (sampl = reader.read()) != null; ) {
+                for (Estimator.Result res : estimator.estimate(sampl)) {
+                    System.out.println(res);
+                }
+            }
+        }
+    }
+}
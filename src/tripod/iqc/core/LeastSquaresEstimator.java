@@ -1,6 +1,10 @@
 package tripod.iqc.core;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
@@ -30,6 +34,35 @@ public class LeastSquaresEstimator
                                        reg.getInterceptStdErr());
         }
 
+        /*
+         * snapshot of a running regression; the underlying
+         * SimpleRegression is only created if someone asks for it
+         */
+        LinearFitModel (Measure[] measures, IncrementalRegression reg) {
+            this.measures = measures;
+            params[0] = new Variable ("Slope", reg.getSlope());
+            params[1] = new Variable ("Intercept", reg.getIntercept());
+            metrics[0] = new Variable ("MSE", reg.getMeanSquareError());
+            metrics[1] = new Variable ("r^2", reg.getR());
+            metrics[2] = new Variable ("SlopeStdErr", reg.getSlopeStdErr());
+            metrics[3] = new Variable ("InterceptStdErr", 
+                                       reg.getInterceptStdErr());
+        }
+
+        /*
+         * model with known parameters followed by metrics in the
+         * order above
+         */
+        LinearFitModel (Measure[] measures, double[] values) {
+            this.measures = measures;
+            params[0] = new Variable ("Slope", values[0]);
+            params[1] = new Variable ("Intercept", values[1]);
+            metrics[0] = new Variable ("MSE", values[2]);
+            metrics[1] = new Variable ("r^2", values[3]);
+            metrics[2] = new Variable ("SlopeStdErr", values[4]);
+            metrics[3] = new Variable ("InterceptStdErr", values[5]);
+        }
+
         public Variable getVariable (String name) {
             for (Variable v : params) {
                 if (name.equals(v.name))
@@ -44,10 +77,18 @@ public class LeastSquaresEstimator
 
         public Measure[] getMeasures () { return measures; }
 
-        public double getMSE () { return reg.getMeanSquareError(); }
-        public double getR () { return reg.getR(); }
+        public double getMSE () { return metrics[0].value; }
+        public double getR () { return metrics[1].value; }
 
-        public Object getModelObj () { return reg; }
+        public synchronized Object getModelObj () { 
+            if (reg == null) {
+                reg = new SimpleRegression ();
+                for (Measure m : measures) {
+                    reg.addData(m.getTime(), Math.log(m.getResponse()));
+                }
+            }
+            return reg; 
+        }
         public int getNumParams () { return params.length; }
         public Variable getParam (int n) { return params[n]; }
         public Variable[] parameters () { return params; }
@@ -58,10 +99,10 @@ public class LeastSquaresEstimator
 
         public String toString () {
             return "LinearFitModel{slope="
-                +String.format("%1$.5f", reg.getSlope())
-                +",intercept="+String.format("%1$.5f", reg.getIntercept())
-                +",MSE="+String.format("%1$.5f", reg.getMeanSquareError())
-                +",R^2="+String.format("%1$.3f", reg.getR())
+                +String.format("%1$.5f", params[0].value)
+                +",intercept="+String.format("%1$.5f", params[1].value)
+                +",MSE="+String.format("%1$.5f", metrics[0].value)
+                +",R^2="+String.format("%1$.3f", metrics[1].value)
                 +"}";
         }
     }
@@ -70,6 +111,15 @@ public class LeastSquaresEstimator
     private int maxOutliers = 3; 
     // maximum number of data points to allow 
     private int maxSize = 10;
+    // update a running regression along the gray code instead of
+    //  refitting every subset from scratch
+    private boolean incremental = true;
+    // prune subsets that can't make the top k (see BoundedSearch)
+    private boolean pruning = false;
+    // if set, large enumerations are split across this pool
+    private ForkJoinPool pool;
+    // if set, results are looked up here before fitting
+    private ResultCache cache;
 
     public LeastSquaresEstimator () {
     }
@@ -82,6 +132,51 @@ public class LeastSquaresEstimator
     public void setMaxSize (int max) { maxSize = max; }
     public int getMaxSize () { return maxSize; }
 
+    public void setIncremental (boolean incremental) {
+        this.incremental = incremental;
+    }
+    public boolean isIncremental () { return incremental; }
+
+    public void setPruning (boolean pruning) { this.pruning = pruning; }
+    public boolean isPruning () { return pruning; }
+
+    public void setPool (ForkJoinPool pool) { this.pool = pool; }
+    public ForkJoinPool getPool () { return pool; }
+
+    public void setCache (ResultCache cache) { this.cache = cache; }
+    public ResultCache getCache () { return cache; }
+
+    /**
+     * Hash of everything the results of estimate(sample, k) depend
+     * on: the median measures (time and response), the estimator
+     * parameters, and the scorer. Samples with the same key have the
+     * same results regardless of their names.
+     */
+    public String getCacheKey (Measure[] measures, int k) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+            DataOutputStream dos = new DataOutputStream (bytes);
+            dos.writeUTF(getClass().getName());
+            dos.writeInt(ResultCache.VERSION);
+            dos.writeInt(maxOutliers);
+            dos.writeInt(maxSize);
+            dos.writeInt(k);
+            dos.writeBoolean(pruning);
+            dos.writeDouble(LeastSquaresFitScore.DEFAULT_ALPHA);
+            dos.writeInt(measures.length);
+            for (Measure m : measures) {
+                Double t = m.getTime(), r = m.getResponse();
+                dos.writeDouble(t != null ? t : Double.NaN);
+                dos.writeDouble(r != null ? r : Double.NaN);
+            }
+            dos.close();
+            return ResultCache.hash(bytes.toByteArray());
+        }
+        catch (IOException ex) { // can't happen
+            throw new RuntimeException (ex);
+        }
+    }
+
     /**
      * Let N be the number of measures for a given sample and k be
      * the number of allowed outliers. This estimator is defined as
@@ -92,7 +187,22 @@ public class LeastSquaresEstimator
      * where L(*) is the least squares fit based on the number of 
      * measures.
      */
-    public List<Result> estimate (final Sample sample) {
+    public List<Result> estimate (Sample sample) {
+        return estimate (sample, 0);
+    }
+
+    /**
+     * Same as above except that only the k best results are retained
+     * (all if k <= 0). The results returned are the first k of what
+     * estimate(sample) would return, ranks included, but memory and 
+     * sorting no longer grow with the number of subsets enumerated.
+     * With pruning enabled, subsets that can't make the top k aren't
+     * fitted at all; in that mode fits with an undefined (NaN) score
+     * are dropped rather than ranked first. Otherwise, if a pool is 
+     * set, the enumeration is split into gray code ranges that are 
+     * fitted in parallel.
+     */
+    public List<Result> estimate (final Sample sample, int k) {
         /*
         if (maxSize > 0 && sample.size() > maxSize) {
             throw new IllegalArgumentException
@@ -100,7 +210,6 @@ public class LeastSquaresEstimator
         }
         */
 
-        final List<Result> results = new ArrayList<Result>();
         final Measure[] measures = sample.getMedianMeasures();
         /*
         // ignore blank measures
@@ -121,6 +230,23 @@ public class LeastSquaresEstimator
                  +") for a meaningful fit!");
         }
 
+        String key = null;
+        if (cache != null) {
+            key = getCacheKey (measures, k);
+            List<Result> results = cache.get(key, sample, measures);
+            if (results != null) {
+                return results;
+            }
+        }
+
+        List<Result> results = fit (sample, measures, k);
+        if (key != null) {
+            cache.put(key, results);
+        }
+        return results;
+    }
+
+    List<Result> fit (Sample sample, Measure[] measures, int k) {
         final int m = Math.min(3, Math.max(0, measures.length - maxOutliers));
 
         // enumerate 2^N combinations and generate a linear regression
@@ -129,30 +255,104 @@ public class LeastSquaresEstimator
         if (maxSize > 0)
             size = Math.min(size, maxSize);
 
+        if (pruning && k > 0) {
+            if (size > 62) {
+                throw new IllegalArgumentException
+                    ("Sample "+sample.getName()+" has too many measures ("
+                     +size+") for pruning!");
+            }
+            TopResults results = new TopResults (k);
+            new BoundedSearch(sample, measures, size, results).search();
+            return results.toList();
+        }
+
+        TopResults results;
+        long words = 1l << size;
+        if (pool != null && words > MIN_RANGE) {
+            RangeFit task = new RangeFit (sample, measures, size, k, 
+                                          0l, words);
+            // already on a pool (e.g., BatchEstimator's)? then stay there
+            results = ForkJoinTask.inForkJoinPool() 
+                ? task.invoke() : pool.invoke(task);
+        }
+        else {
+            results = new TopResults (k);
+            enumerate (sample, measures, size, 0l, words, results);
+        }
+
+        //logger.info(results.size()+" results!");
+        return results.toList();
+    }
+
+    // fit the subsets of gray code rank [from, to)
+    void enumerate (final Sample sample, final Measure[] measures, 
+                    int size, long from, long to, 
+                    final TopResults results) {
         GrayCode gc = GrayCode.createBinaryGrayCode(size);
-        gc.addObserver(new Observer () {
-                public void update (Observable o, Object arg) {
-                    int[] bv = (int[])arg;
-                    int c = 0;
-                    for (int i = 0; i < bv.length; ++i)
-                        if (bv[i] > 0)
-                            ++c;
-                    if (c >= 3) {
-                        results.add(estimate (sample, bv, measures));
+        if (incremental) {
+            gc.generate(from, to, new IncrementalFit 
+                        (sample, measures, size, results));
+        }
+        else {
+            final int[] bv = new int[size];
+            gc.generate(from, to, new GrayCode.Visitor () {
+                    public boolean visit (long bits, int flipped, 
+                                          boolean set) {
+                        if (flipped >= 0) {
+                            bv[flipped] = set ? 1 : 0;
+                        }
+                        else { // start of range
+                            for (int i = 0; i < bv.length; ++i)
+                                bv[i] = (int)((bits >>> i) & 1l);
+                        }
+                        if (Long.bitCount(bits) >= 3) {
+                            results.add(estimate (sample, bv, measures),
+                                        GrayCode.rank(bits));
+                        }
+                        return true;
                     }
-                }
-            });
+                });
+        }
+    }
+
+    // smallest range worth splitting off into its own task
+    static final long MIN_RANGE = 1l << 10;
+
+    class RangeFit extends RecursiveTask<TopResults> {
+        private static final long serialVersionUID = 0x5a3e9c21b4f07d63l;
+
+        final Sample sample;
+        final Measure[] measures;
+        final int size, k;
+        final long from, to;
 
-        // now run
-        gc.generate();
-        Collections.sort(results); // sort results
-        int rank = 0;
-        for (Result r : results) {
-            r.setRank(++rank);
+        RangeFit (Sample sample, Measure[] measures, int size, int k,
+                  long from, long to) {
+            this.sample = sample;
+            this.measures = measures;
+            this.size = size;
+            this.k = k;
+            this.from = from;
+            this.to = to;
         }
 
-        //logger.info(results.size()+" results!");
-        return results;
+        @Override
+        protected TopResults compute () {
+            if (to - from > MIN_RANGE) {
+                long mid = (from + to) >>> 1;
+                RangeFit right = new RangeFit
+                    (sample, measures, size, k, mid, to);
+                right.fork();
+                TopResults results = new RangeFit
+                    (sample, measures, size, k, from, mid).compute();
+                results.addAll(right.join());
+                return results;
+            }
+
+            TopResults results = new TopResults (k);
+            enumerate (sample, measures, size, from, to, results);
+            return results;
+        }
     }
 
     public int compare (Result r1, Result r2) {
@@ -161,6 +361,329 @@ public class LeastSquaresEstimator
         return 0;
     }
 
+    // relative difference below which two scores are taken to be the
+    //  same when deciding whether a fit can still make the top k; a
+    //  running regression reaches the same fit along different paths
+    //  (e.g., subsets that differ only by an invalid measure) with
+    //  scores that differ in the last few bits. It's not used to sort
+    //  since it isn't transitive.
+    static final double SCORE_TOLERANCE = 1e-9;
+
+    static int compareScores (double s1, double s2) {
+        if (Math.abs(s1 - s2)
+            <= SCORE_TOLERANCE * Math.max(Math.abs(s1), Math.abs(s2))) {
+            return 0;
+        }
+        return Double.compare(s1, s2);
+    }
+
+    /*
+     * Collect results along with their gray code rank; when bounded,
+     * only the k best are kept in a heap whose head is the worst of 
+     * them. Ties in score are broken by rank so that the outcome is the
+     * same as the stable sort over all results in gray code order, no
+     * matter the order in which they are added. Whether a result can
+     * still be retained is decided up to SCORE_TOLERANCE, so near ties
+     * aren't skipped or pruned just because their scores were computed
+     * along another path.
+     */
+    static class TopResults implements Comparator<TopResults.Entry> {
+        static class Entry {
+            final Result result;
+            final long seq;
+
+            Entry (Result result, long seq) {
+                this.result = result;
+                this.seq = seq;
+            }
+        }
+
+        final int k;
+        final List<Entry> all;
+        final PriorityQueue<Entry> heap;
+
+        TopResults (int k) {
+            this.k = k;
+            heap = k > 0 ? new PriorityQueue<Entry>
+                (k, Collections.reverseOrder(this)) : null;
+            all = k > 0 ? null : new ArrayList<Entry>();
+        }
+
+        // would a result with this score and rank be retained?
+        boolean accepts (double score, long seq) {
+            if (heap == null || heap.size() < k) {
+                return true;
+            }
+            Entry worst = heap.peek();
+            int d = compareScores (score, worst.result.getScore());
+            return d > 0 || (d == 0 && seq < worst.seq);
+        }
+
+        // could anything scoring at most bound still be retained? (a
+        //  score tied with the worst might still win on rank)
+        boolean admits (double bound) {
+            return heap == null || heap.size() < k
+                || compareScores (bound, heap.peek().result.getScore()) >= 0;
+        }
+
+        void add (Result r, long seq) {
+            add (new Entry (r, seq));
+        }
+
+        void add (Entry e) {
+            if (heap == null) {
+                all.add(e);
+            }
+            else if (heap.size() < k) {
+                heap.add(e);
+            }
+            else if (compare (e, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(e);
+            }
+        }
+
+        public int compare (Entry e1, Entry e2) {
+            Double s1 = e1.result.getScore(), s2 = e2.result.getScore();
+            int d = s1 != null && s2 != null
+                ? Double.compare(s2, s1) : e1.result.compareTo(e2.result);
+            return d != 0 ? d : Long.compare(e1.seq, e2.seq);
+        }
+
+        void addAll (TopResults other) {
+            for (Entry e : other.heap != null ? other.heap : other.all) {
+                add (e);
+            }
+        }
+
+        int size () { return heap != null ? heap.size() : all.size(); }
+
+        List<Result> toList () {
+            List<Entry> entries = heap != null 
+                ? new ArrayList<Entry>(heap) : all;
+            Collections.sort(entries, this); // sort results
+            List<Result> results = new ArrayList<Result>(entries.size());
+            for (Entry e : entries) {
+                results.add(e.result);
+            }
+
+            int rank = 0;
+            for (Result r : results) {
+                r.setRank(++rank);
+            }
+            return results;
+        }
+    }
+
+    /*
+     * A binary gray code flips exactly one bit per step, so instead of
+     * fitting each subset from scratch we keep a single running
+     * regression and add or remove the point that changed. Points with
+     * missing time or response are skipped just as in the full fit;
+     * should a selected point have a non-finite log response (e.g., a
+     * zero response) or the running sums be too degenerate to trust
+     * (e.g., constant responses), we fall back to the full fit so that
+     * the result is the same as before.
+     */
+    class IncrementalFit implements GrayCode.Visitor {
+        final Sample sample;
+        final Measure[] measures;
+        final TopResults results;
+        final double[] x, y; // time and ln(response)
+        final boolean[] valid;
+        final int[] current;
+        final IncrementalRegression reg;
+        final LeastSquaresFitScore scorer = new LeastSquaresFitScore ();
+        int selected, nonfinite;
+        double weights; // sum of time point weights of the selected
+
+        IncrementalFit (Sample sample, Measure[] measures, int size,
+                        TopResults results) {
+            this.sample = sample;
+            this.measures = measures;
+            this.results = results;
+            current = new int[size];
+
+            // time and log response straight from the columnar view of
+            //  the median measures
+            SampleColumns cols = sample.getMedianColumns();
+            x = cols.time;
+            y = cols.lnResponse;
+            valid = new boolean[cols.size()];
+
+            int n = 0;
+            double mx = 0., my = 0.;
+            for (int i = 0; i < valid.length; ++i) {
+                if (cols.isValid(i)) {
+                    valid[i] = true;
+                    if (!Double.isInfinite(y[i]) && !Double.isNaN(y[i])) {
+                        mx += x[i];
+                        my += y[i];
+                        ++n;
+                    }
+                }
+            }
+            reg = n > 0 ? new IncrementalRegression (mx/n, my/n)
+                : new IncrementalRegression ();
+        }
+
+        public boolean visit (long bits, int flipped, boolean set) {
+            if (flipped >= 0) {
+                current[flipped] = set ? 1 : 0;
+                if (set) add (flipped);
+                else remove (flipped);
+            }
+            else { // start of range
+                for (int i = 0; i < current.length; ++i) {
+                    if ((bits & (1l << i)) != 0) {
+                        current[i] = 1;
+                        add (i);
+                    }
+                }
+            }
+
+            if (selected < 3) {
+            }
+            else if (nonfinite > 0 || !reg.isWellConditioned()) {
+                results.add(estimate (sample, current, measures),
+                            GrayCode.rank(bits));
+            }
+            else {
+                long rank = GrayCode.rank(bits);
+                // only create a result if it's going to be kept
+                if (results.accepts
+                    (scorer.eval(weights, reg.getR(), 
+                                 reg.getMeanSquareError()), rank)) {
+                    results.add(estimate (sample, current, measures, reg),
+                                rank);
+                }
+            }
+            return true;
+        }
+
+        void add (int i) {
+            ++selected;
+            if (!valid[i]) {
+            }
+            else if (Double.isInfinite(y[i]) || Double.isNaN(y[i])) {
+                ++nonfinite;
+            }
+            else {
+                reg.addData(x[i], y[i]);
+                weights += LeastSquaresFitScore.weight(x[i]);
+            }
+        }
+
+        void remove (int i) {
+            --selected;
+            if (!valid[i]) {
+            }
+            else if (Double.isInfinite(y[i]) || Double.isNaN(y[i])) {
+                --nonfinite;
+            }
+            else {
+                reg.removeData(x[i], y[i]);
+                weights -= LeastSquaresFitScore.weight(x[i]);
+            }
+        }
+    }
+
+    /*
+     * Depth-first enumeration of the same subsets as the gray code.
+     * A fit never scores more than the weights of its time points (see
+     * LeastSquaresFitScore), so a branch whose selected plus remaining
+     * weights can't reach the current k-th best is cut without fitting
+     * anything in it. Points are tried for inclusion first and in time
+     * order so that the heavy early time points quickly establish a
+     * good k-th best. Results are sequenced by their gray code rank so
+     * ties come out as they would in the full enumeration; since the
+     * running sums differ from those of the gray code walk, branches
+     * are only cut when they can't come within SCORE_TOLERANCE of the
+     * k-th best (see TopResults).
+     */
+    class BoundedSearch extends IncrementalFit {
+        final double[] remaining; // most weights attainable from i on
+
+        BoundedSearch (Sample sample, Measure[] measures, int size, 
+                       TopResults results) {
+            super (sample, measures, size, results);
+            remaining = new double[size+1];
+            for (int i = size; --i >= 0; ) {
+                remaining[i] = remaining[i+1];
+                if (valid[i] && !nonfinite (i))
+                    remaining[i] += LeastSquaresFitScore.weight(x[i]);
+            }
+        }
+
+        boolean nonfinite (int i) {
+            return Double.isInfinite(y[i]) || Double.isNaN(y[i]);
+        }
+
+        void search () {
+            search (0, 0l);
+        }
+
+        void search (int i, long mask) {
+            if (!results.admits(scorer.bound(weights + remaining[i]))) {
+                return;
+            }
+
+            if (i == current.length) {
+                if (selected >= 3) {
+                    collect (mask);
+                }
+            }
+            else {
+                // a non-finite point makes the fit NaN, so don't bother
+                if (!valid[i] || !nonfinite (i)) {
+                    current[i] = 1;
+                    add (i);
+                    search (i+1, mask | (1l << i));
+                    current[i] = 0;
+                    remove (i);
+                }
+                search (i+1, mask);
+            }
+        }
+
+        void collect (long mask) {
+            long seq = GrayCode.rank(mask);
+            Result r;
+            if (reg.isWellConditioned()) {
+                double score = scorer.eval
+                    (weights, reg.getR(), reg.getMeanSquareError());
+                if (Double.isNaN(score) || !results.accepts(score, seq)) {
+                    return;
+                }
+                r = estimate (sample, current, measures, reg);
+            }
+            else {
+                r = estimate (sample, current, measures);
+                if (r.getScore().isNaN()) {
+                    return;
+                }
+            }
+            results.add(r, seq);
+        }
+    }
+
+    protected Result estimate (Sample sample, int[] selector, 
+                               Measure[] measures, 
+                               IncrementalRegression reg) {
+        Measure[] selected = new Measure[reg.getN()];
+        for (int i = 0, j = 0; i < selector.length; ++i) {
+            if (selector[i] > 0 && measures[i].getTime() != null
+                && measures[i].getResponse() != null) {
+                selected[j++] = measures[i];
+            }
+        }
+
+        return new Result
+            (sample, measures, selector, 
+             new LinearFitModel (selected, reg),
+             new LeastSquaresFitScore ());
+    }
+
     protected Result estimate (Sample sample, int[] selector, 
                                Measure[] measures) {
         SimpleRegression reg = new SimpleRegression ();
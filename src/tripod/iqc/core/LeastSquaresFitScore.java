@@ -38,19 +38,46 @@ public class LeastSquaresFitScore implements FitScore {
         Measure[] measures = lfm.getMeasures();
         double score = 0.;
         for (Measure m : measures) {
-            int t = m.getTime().intValue();
-            switch (t) {
-            case  0: score += 1; break;
-            case  5: score += 1/2.; break;
-            case 10: score += 1/4.; break;
-            case 15: score += 1/8.; break;
-            case 30: score += 1/16.; break;
-            case 60: score += 1/32.; break;
-            }
+            score += weight (m.getTime());
         }
-        score *= alpha*lfm.getR()*lfm.getR() 
-            + (1.-alpha)*Math.exp(-lfm.getMSE());
+
+        return eval (score, lfm.getR(), lfm.getMSE());
+    }
+
+    /**
+     * Same as above but from the raw quantities, where weights is the
+     * sum of the time point weights of the measures in the fit. This
+     * allows a fit to be scored before a model is created for it.
+     */
+    public double eval (double weights, double r, double mse) {
+        double score = weights;
+        score *= alpha*r*r + (1.-alpha)*Math.exp(-mse);
 
         return score/BEST_SCORE;
     }
+
+    /**
+     * An upper bound on the score of any fit whose time point weights
+     * sum to weights; both R^2 and exp(-MSE) are at most 1. The bound 
+     * is padded slightly so rounding in eval() can never exceed it.
+     */
+    public double bound (double weights) {
+        return weights/BEST_SCORE * (1. + 1e-12);
+    }
+
+    /**
+     * The weight t_i of a time point (in minutes) as defined above;
+     * time points other than those listed don't contribute.
+     */
+    public static double weight (double time) {
+        switch ((int)time) {
+        case  0: return 1;
+        case  5: return 1/2.;
+        case 10: return 1/4.;
+        case 15: return 1/8.;
+        case 30: return 1/16.;
+        case 60: return 1/32.;
+        }
+        return 0.;
+    }
 }
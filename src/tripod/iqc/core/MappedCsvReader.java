@@ -0,0 +1,397 @@
+package tripod.iqc.core;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Same format and samples as CsvReader, but for large files on
+ * disk. The file is memory mapped and each line is scanned in place;
+ * field boundaries are kept as offsets into the mapped buffer and
+ * numbers (and N/F) are parsed directly from the bytes, so the only
+ * String created per line is the sample name.
+ */
+public class MappedCsvReader implements Reader, Closeable {
+    private static final Logger logger =
+        Logger.getLogger(MappedCsvReader.class.getName());
+
+    // largest region of the file mapped at any one time
+    static final int WINDOW = 1<<30;
+
+    // exactly representable powers of ten
+    static final double[] POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final FileChannel channel;
+    private final long length;
+    private final Charset charset = Charset.defaultCharset();
+    private MappedByteBuffer buf;
+    private long base; // file offset of buf
+    private int pos; // start of the next line within buf
+
+    private int lines;
+    private String[] header;
+    private int[] times; // time point of each header column
+    private Map<String, Sample> samples = new HashMap<String, Sample>();
+
+    // fields of the current line
+    private int fields;
+    private int[] start = new int[16];
+    private int[] end = new int[16];
+    private int[] chars = new int[16]; // number of non-quote bytes
+    private boolean[] quoted = new boolean[16];
+    private byte[] scratch = new byte[256];
+
+    public MappedCsvReader (File file) throws IOException {
+        this (new RandomAccessFile (file, "r").getChannel(), true);
+    }
+
+    public MappedCsvReader (FileChannel channel) throws IOException {
+        this (channel, false);
+    }
+
+    // an owned channel is closed if the file can't be read
+    MappedCsvReader (FileChannel channel, boolean owned) throws IOException {
+        this.channel = channel;
+        boolean ok = false;
+        try {
+            length = channel.size();
+            map (0l);
+
+            if (!nextLine ()) {
+                throw new IllegalArgumentException ("End of stream");
+            }
+
+            header = new String[fields];
+            times = new int[fields];
+            for (int i = 0; i < fields; ++i) {
+                header[i] = text (i);
+                try {
+                    times[i] = Integer.parseInt(header[i].substring(1));
+                }
+                catch (Exception ex) {
+                    times[i] = -1;
+                }
+            }
+            if (header.length != 13) {
+                throw new IllegalArgumentException
+                    ("Invalid header: "+Arrays.toString(header));
+            }
+            lines = 1;
+            ok = true;
+        }
+        finally {
+            if (!ok && owned) {
+                channel.close();
+            }
+        }
+    }
+
+    public Sample read () throws IOException {
+        while (nextLine ()) {
+            ++lines;
+            if (fields != header.length) {
+                logger.warning(lines+": invalid number of tokens "+fields
+                               +"; expecting "+header.length);
+                continue;
+            }
+
+            if (chars[0] == 0) {
+                continue;
+            }
+
+            String name = text (0);
+            String sample = name;
+            int repl = 0;
+            int pos = sample.lastIndexOf('-');
+            if (pos > 0) {
+                repl = Integer.parseInt(sample.substring(pos+1)) - 1;
+                sample = sample.substring(0, pos);
+            }
+
+            Sample sampl = samples.get(sample);
+            if (sampl == null) {
+                samples.put(sample, sampl = new Sample (sample));
+            }
+
+            int[] TIMES = CsvReader.TIMES;
+            for (int i = 0, j = 1; i < TIMES.length; ++i, j += 2) {
+                if (isNF (j)) {
+                }
+                else if (times[j] != TIMES[i]) {
+                    logger.warning(lines+": time point mismatched; "
+                                   +"expecting T"+TIMES[i]+" but got "
+                                   +header[j]+"!");
+                }
+                else if (chars[j] > 0 && chars[j+1] > 0) {
+                    try {
+                        double res = number (j);
+                        double std = number (j+1);
+                        Measure m = new Measure (repl);
+                        m.setName(name);
+                        m.setTime((double)TIMES[i], TimeUnit.MINUTES);
+                        m.setResponse(res/std);
+                        sampl.add(m);
+                    }
+                    catch (NumberFormatException ex) {
+                        logger.warning(lines+": bogus number; either \""
+                                       +text (j)+"\" or \""+text (j+1)
+                                       +"\" is bogus!");
+                    }
+                }
+            }
+            return sampl;
+        }
+        return null;
+    }
+
+    public void close () throws IOException {
+        buf = null;
+        channel.close();
+    }
+
+    void map (long offset) throws IOException {
+        base = offset;
+        pos = 0;
+        buf = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                          Math.min(WINDOW, length - offset));
+    }
+
+    /*
+     * Advance to the next non-empty line and record its fields with
+     * the same quoting rules as CsvReader.tokenizer(); return false at
+     * the end of the file.
+     */
+    boolean nextLine () throws IOException {
+        while (base + pos < length) {
+            int limit = buf.limit(), i = pos, parity = 0;
+            byte last = 0;
+
+            fields = 0;
+            field (i);
+            for (; i < limit; ++i) {
+                byte b = buf.get(i);
+                if (b == '\n' || b == '\r') {
+                    break;
+                }
+                last = b;
+                if (b == '"') {
+                    parity ^= 1;
+                    quoted[fields] = true;
+                }
+                else if (b == ',' && parity == 0) {
+                    end[fields++] = i;
+                    field (i+1);
+                }
+                else {
+                    ++chars[fields];
+                }
+            }
+
+            if (i == limit && base + limit < length) {
+                // line runs past the mapped window
+                if (pos == 0) {
+                    throw new IOException
+                        ("Line "+(lines+1)+" is longer than "+WINDOW
+                         +" bytes!");
+                }
+                map (base + pos);
+                continue;
+            }
+
+            boolean empty = i == pos;
+            end[fields] = i;
+            // a trailing empty field only counts after a delimiter
+            if (chars[fields] > 0 || last == ',') {
+                ++fields;
+            }
+
+            if (i < limit && buf.get(i) == '\r'
+                && i+1 < limit && buf.get(i+1) == '\n') {
+                ++i;
+            }
+            pos = i < limit ? i+1 : i;
+
+            if (!empty) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void field (int offset) {
+        if (fields == start.length) {
+            int size = fields*2;
+            start = Arrays.copyOf(start, size);
+            end = Arrays.copyOf(end, size);
+            chars = Arrays.copyOf(chars, size);
+            quoted = Arrays.copyOf(quoted, size);
+        }
+        start[fields] = offset;
+        chars[fields] = 0;
+        quoted[fields] = false;
+    }
+
+    boolean isNF (int f) {
+        if (quoted[f]) {
+            return "N/F".equals(text (f));
+        }
+        int s = start[f];
+        return end[f] - s == 3 && buf.get(s) == 'N'
+            && buf.get(s+1) == '/' && buf.get(s+2) == 'F';
+    }
+
+    double number (int f) {
+        return quoted[f] ? Double.parseDouble(text (f))
+            : parseDouble (buf, start[f], end[f]);
+    }
+
+    // content of a field with the quotes removed; null if empty
+    String text (int f) {
+        if (chars[f] == 0) {
+            return null;
+        }
+        if (scratch.length < chars[f]) {
+            scratch = new byte[chars[f]];
+        }
+        int n = 0;
+        for (int i = start[f]; i < end[f]; ++i) {
+            byte b = buf.get(i);
+            if (b != '"') {
+                scratch[n++] = b;
+            }
+        }
+        return new String (scratch, 0, n, charset);
+    }
+
+    /**
+     * Parse a decimal number from buf[start,end) with the same result
+     * as Double.parseDouble(). Numbers with at most 15 significant
+     * digits and a small exponent (which covers the instrument
+     * exports) are converted exactly with a single multiply or divide;
+     * anything else falls back to Double.parseDouble().
+     */
+    static double parseDouble (java.nio.ByteBuffer buf, int start, int end) {
+        int i = start;
+        boolean neg = false;
+        if (i < end) {
+            byte b = buf.get(i);
+            if (b == '-' || b == '+') {
+                neg = b == '-';
+                ++i;
+            }
+        }
+
+        long mantissa = 0l;
+        int digits = 0, scale = 0;
+        boolean any = false, point = false;
+        for (; i < end; ++i) {
+            byte b = buf.get(i);
+            if (b == '.' && !point) {
+                point = true;
+                continue;
+            }
+
+            int d = b - '0';
+            if (d < 0 || d > 9) {
+                break;
+            }
+
+            any = true;
+            if (mantissa != 0l || d != 0) {
+                if (++digits > 15) {
+                    return slowParseDouble (buf, start, end);
+                }
+                mantissa = mantissa*10 + d;
+            }
+            if (point) {
+                --scale;
+            }
+        }
+
+        if (!any) {
+            return slowParseDouble (buf, start, end);
+        }
+
+        if (i < end && (buf.get(i) == 'e' || buf.get(i) == 'E')) {
+            ++i;
+            boolean eneg = false;
+            if (i < end && (buf.get(i) == '-' || buf.get(i) == '+')) {
+                eneg = buf.get(i) == '-';
+                ++i;
+            }
+
+            int exp = 0, n = 0;
+            for (; i < end; ++i, ++n) {
+                int d = buf.get(i) - '0';
+                if (d < 0 || d > 9 || n == 4) {
+                    break;
+                }
+                exp = exp*10 + d;
+            }
+            if (n == 0) {
+                return slowParseDouble (buf, start, end);
+            }
+            scale += eneg ? -exp : exp;
+        }
+
+        if (i != end) {
+            return slowParseDouble (buf, start, end);
+        }
+
+        double value;
+        if (mantissa == 0l) {
+            value = 0.;
+        }
+        else if (scale >= 0 && scale < POW10.length) {
+            value = mantissa * POW10[scale];
+        }
+        else if (scale < 0 && -scale < POW10.length) {
+            value = mantissa / POW10[-scale];
+        }
+        else {
+            return slowParseDouble (buf, start, end);
+        }
+        return neg ? -value : value;
+    }
+
+    static double slowParseDouble
+        (java.nio.ByteBuffer buf, int start, int end) {
+        char[] text = new char[end - start];
+        for (int i = start; i < end; ++i) {
+            text[i - start] = (char)(buf.get(i) & 0xff);
+        }
+        return Double.parseDouble(new String (text));
+    }
+
+    public static void main (String[] argv) throws Exception {
+        if (argv.length == 0) {
+            System.err.println("Usage: MappedCsvReader FILES...");
+            System.exit(1);
+        }
+
+        for (String a : argv) {
+            logger.info("Reading from \""+a+"\"...");
+            long start = System.currentTimeMillis();
+            MappedCsvReader reader = new MappedCsvReader (new File (a));
+            int count = 0;
+            try {
+                while (reader.read() != null) {
+                    ++count;
+                }
+            }
+            finally {
+                reader.close();
+            }
+            logger.info(a+": "+reader.samples.size()+" sample(s) in "
+                        +count+" line(s) read in "
+                        +(System.currentTimeMillis()-start)+"ms");
+        }
+    }
+}
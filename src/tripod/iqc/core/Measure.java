@@ -82,7 +82,7 @@ public class Measure implements Serializable,
         this.isArea = isArea;
         return this;
     }
-    public Double getIsArea () { return area; }
+    public Double getIsArea () { return isArea; }
 
     public Measure setResponse (Double response) {
         this.response = response;
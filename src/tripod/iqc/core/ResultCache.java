@@ -0,0 +1,368 @@
+package tripod.iqc.core;
+
+import java.io.*;
+import java.util.*;
+import java.security.MessageDigest;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+import static tripod.iqc.core.LeastSquaresEstimator.LinearFitModel;
+
+/**
+ * Cache of ranked fit results keyed by a hash of everything the fit
+ * depends on (see LeastSquaresEstimator.getCacheKey). Only the numbers
+ * are kept (selected configuration, model parameters and metrics,
+ * score, and rank); results are rebuilt against the sample being
+ * estimated so that callers are free to modify them. The most recently
+ * used entries are kept in memory and, if a directory is given, every
+ * entry is also written to disk so that it survives restarts. The
+ * directory is kept under a maximum size (see setMaxDiskSize) by
+ * deleting the least recently used entries (by modified time, which is
+ * updated whenever an entry is read back).
+ */
+public class ResultCache {
+    private static final Logger logger =
+        Logger.getLogger(ResultCache.class.getName());
+
+    static final int MAGIC = 0x49514346; // IQCF
+    static final int VERSION = 1;
+    public static final long DEFAULT_DISK_SIZE = 256l<<20; // 256MB
+
+    static class Fit {
+        int length; // config length
+        long config; // config as a bit vector
+        double[] values; // model parameters followed by metrics
+        double score;
+        int rank;
+    }
+
+    private final File dir;
+    private final Map<String, Fit[]> lru;
+    private int hits, misses;
+    private long maxDiskSize = DEFAULT_DISK_SIZE;
+    private long diskSize = -1l; // bytes on disk; -1 if not known yet
+
+    public ResultCache (int capacity) {
+        this (null, capacity);
+    }
+
+    public ResultCache (File dir, final int capacity) {
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalArgumentException
+                ("Can't create cache directory "+dir);
+        }
+        this.dir = dir;
+        lru = new LinkedHashMap<String, Fit[]>(16, .75f, true) {
+            @Override
+            protected boolean removeEldestEntry
+                (Map.Entry<String, Fit[]> eldest) {
+                return size () > capacity;
+            }
+        };
+    }
+
+    public File getDirectory () { return dir; }
+
+    // bytes of entries kept on disk; 0 for no limit
+    public synchronized void setMaxDiskSize (long maxDiskSize) {
+        this.maxDiskSize = maxDiskSize;
+    }
+    public synchronized long getMaxDiskSize () { return maxDiskSize; }
+    public synchronized int getHits () { return hits; }
+    public synchronized int getMisses () { return misses; }
+
+    /**
+     * Return the cached results for key rebuilt against the given
+     * sample and (median) measures, or null if there aren't any.
+     */
+    public List<Estimator.Result> get (String key, Sample sample,
+                                       Measure[] measures) {
+        Fit[] fits;
+        synchronized (this) {
+            fits = lru.get(key);
+        }
+
+        if (fits == null && dir != null) {
+            fits = load (key);
+            if (fits != null) {
+                synchronized (this) {
+                    lru.put(key, fits);
+                }
+            }
+        }
+
+        synchronized (this) {
+            if (fits == null) {
+                ++misses;
+                return null;
+            }
+            ++hits;
+        }
+
+        List<Estimator.Result> results =
+            new ArrayList<Estimator.Result>(fits.length);
+        for (Fit f : fits) {
+            int[] config = new int[f.length];
+            List<Measure> selected = new ArrayList<Measure>();
+            for (int i = 0; i < config.length; ++i) {
+                if ((f.config & (1l << i)) != 0) {
+                    config[i] = 1;
+                    if (measures[i].getTime() != null
+                        && measures[i].getResponse() != null) {
+                        selected.add(measures[i]);
+                    }
+                }
+            }
+
+            Estimator.Result r = new Estimator.Result
+                (sample, measures, config, new LinearFitModel
+                 (selected.toArray(new Measure[0]), f.values), f.score);
+            r.setRank(f.rank);
+            results.add(r);
+        }
+        return results;
+    }
+
+    public void put (String key, List<Estimator.Result> results) {
+        Fit[] fits = new Fit[results.size()];
+        for (int i = 0; i < fits.length; ++i) {
+            Estimator.Result r = results.get(i);
+            Fit f = fits[i] = new Fit ();
+            int[] config = r.getConfig();
+            if (config.length > 64) {
+                return; // can't be represented; don't cache
+            }
+            f.length = config.length;
+            for (int j = 0; j < config.length; ++j) {
+                if (config[j] > 0) {
+                    f.config |= 1l << j;
+                }
+            }
+
+            FitModel model = r.getModel();
+            f.values = new double[model.getNumParams()
+                                  + model.getNumMetrics()];
+            for (int j = 0; j < model.getNumParams(); ++j) {
+                f.values[j] = model.getParam(j).getValue();
+            }
+            for (int j = 0; j < model.getNumMetrics(); ++j) {
+                f.values[model.getNumParams()+j] =
+                    model.getMetric(j).getValue();
+            }
+            f.score = r.getScore();
+            f.rank = r.getRank();
+        }
+
+        synchronized (this) {
+            lru.put(key, fits);
+        }
+
+        if (dir != null) {
+            save (key, fits);
+        }
+    }
+
+    /**
+     * Cache results fitted elsewhere (e.g., fetched from the server).
+     * For the i-th result, config[i] is the bit vector of the measures
+     * (out of length) that went into the fit and values[i] are the
+     * model parameters followed by the metrics; missing values are NaN.
+     */
+    public void put (String key, int length, int[] rank, long[] config,
+                     double[][] values, double[] score) {
+        Fit[] fits = new Fit[rank.length];
+        for (int i = 0; i < fits.length; ++i) {
+            Fit f = fits[i] = new Fit ();
+            f.length = length;
+            f.config = config[i];
+            f.values = values[i];
+            f.score = score[i];
+            f.rank = rank[i];
+        }
+
+        synchronized (this) {
+            lru.put(key, fits);
+        }
+
+        if (dir != null) {
+            save (key, fits);
+        }
+    }
+
+    /**
+     * True if key is cached either in memory or on disk
+     */
+    public boolean contains (String key) {
+        synchronized (this) {
+            if (lru.containsKey(key)) {
+                return true;
+            }
+        }
+        return dir != null && file (key).exists();
+    }
+
+    public synchronized void clear () {
+        lru.clear();
+    }
+
+    File file (String key) {
+        return new File (dir, key+".fit");
+    }
+
+    Fit[] load (String key) {
+        File file = file (key);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            DataInputStream dis = new DataInputStream
+                (new BufferedInputStream (new FileInputStream (file)));
+            try {
+                if (dis.readInt() != MAGIC || dis.readInt() != VERSION) {
+                    throw new IOException ("Unknown format");
+                }
+                // recently used
+                file.setLastModified(System.currentTimeMillis());
+                Fit[] fits = new Fit[dis.readInt()];
+                for (int i = 0; i < fits.length; ++i) {
+                    Fit f = fits[i] = new Fit ();
+                    f.length = dis.readInt();
+                    f.config = dis.readLong();
+                    f.values = new double[dis.readInt()];
+                    for (int j = 0; j < f.values.length; ++j) {
+                        f.values[j] = dis.readDouble();
+                    }
+                    f.score = dis.readDouble();
+                    f.rank = dis.readInt();
+                }
+                return fits;
+            }
+            finally {
+                dis.close();
+            }
+        }
+        catch (IOException ex) {
+            logger.log(Level.WARNING, "Bogus cache file "+file
+                       +"; ignoring it!", ex);
+            file.delete();
+        }
+        return null;
+    }
+
+    void save (String key, Fit[] fits) {
+        File file = file (key);
+        try {
+            // write to a temp file first so that readers never see a
+            //  partially written entry
+            File tmp = File.createTempFile(key, ".tmp", dir);
+            DataOutputStream dos = new DataOutputStream
+                (new BufferedOutputStream (new FileOutputStream (tmp)));
+            try {
+                dos.writeInt(MAGIC);
+                dos.writeInt(VERSION);
+                dos.writeInt(fits.length);
+                for (Fit f : fits) {
+                    dos.writeInt(f.length);
+                    dos.writeLong(f.config);
+                    dos.writeInt(f.values.length);
+                    for (double v : f.values) {
+                        dos.writeDouble(v);
+                    }
+                    dos.writeDouble(f.score);
+                    dos.writeInt(f.rank);
+                }
+            }
+            finally {
+                dos.close();
+            }
+
+            long old = file.length(); // 0 if it doesn't exist
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    tmp.delete();
+                    logger.warning("Can't write cache file "+file);
+                }
+            }
+            written (file.length() - old);
+        }
+        catch (IOException ex) {
+            logger.log(Level.WARNING, "Can't write cache file "+file, ex);
+        }
+    }
+
+    /*
+     * Account for bytes written to disk and, past the maximum size,
+     * delete the least recently used entries until the directory is
+     * down to 3/4 of it (so as not to do this on every write).
+     */
+    synchronized void written (long bytes) {
+        if (maxDiskSize <= 0l) {
+            return;
+        }
+
+        File[] files = null;
+        if (diskSize < 0l) {
+            files = files ();
+            diskSize = 0l;
+            for (File f : files) {
+                diskSize += f.length();
+            }
+        }
+        else {
+            diskSize += bytes;
+        }
+
+        if (diskSize > maxDiskSize) {
+            if (files == null) {
+                files = files ();
+            }
+            final Map<File, Long> modified = new HashMap<File, Long>();
+            for (File f : files) {
+                modified.put(f, f.lastModified());
+            }
+            Arrays.sort(files, new Comparator<File>() {
+                    public int compare (File f1, File f2) {
+                        return modified.get(f1).compareTo(modified.get(f2));
+                    }
+                });
+
+            int deleted = 0;
+            for (int i = 0; i < files.length
+                     && diskSize > maxDiskSize/4*3; ++i) {
+                long length = files[i].length();
+                if (files[i].delete()) {
+                    diskSize -= length;
+                    ++deleted;
+                }
+            }
+            logger.info(deleted+" cache file(s) deleted from "+dir
+                        +"; "+diskSize+" byte(s) left");
+        }
+    }
+
+    File[] files () {
+        File[] files = dir.listFiles(new FilenameFilter () {
+                public boolean accept (File d, String name) {
+                    return name.endsWith(".fit");
+                }
+            });
+        return files != null ? files : new File[0];
+    }
+
+    // hex encoded SHA-1 of the given bytes
+    public static String hash (byte[] data) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA1");
+            StringBuilder sb = new StringBuilder ();
+            for (byte b : md.digest(data)) {
+                sb.append(String.format("%1$02x", b & 0xff));
+            }
+            return sb.toString();
+        }
+        catch (Exception ex) {
+            throw new RuntimeException (ex);
+        }
+    }
+}
@@ -3,11 +3,10 @@ package tripod.iqc.core;
 import java.io.Serializable;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.BitSet;
-import java.util.Map;
-import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -22,6 +21,8 @@ public class Sample implements Serializable {
     private boolean blank; // is this a blank sample?
     private List<Measure> measures = new ArrayList<Measure>();
     private Measure[] median;
+    // derived columnar views; rebuilt on demand
+    private transient SampleColumns columns, medianColumns;
 
     private BitSet replicates = new BitSet ();
 
@@ -54,9 +55,13 @@ public class Sample implements Serializable {
     }
     public boolean getBlank () { return blank; }
 
-    public void add (Measure measure) {
+    synchronized public void add (Measure measure) {
         replicates.set(measure.getReplicate(), true);
         measures.add(measure);
+        // anything derived from the measures is now stale
+        median = null;
+        columns = null;
+        medianColumns = null;
     }
     public int size () { return measures.size(); }
 
@@ -81,42 +86,66 @@ public class Sample implements Serializable {
         return Collections.unmodifiableList(measures); 
     }
 
+    synchronized public SampleColumns getColumns () {
+        if (columns == null) {
+            columns = new SampleColumns (measures);
+        }
+        return columns;
+    }
+
+    synchronized public SampleColumns getMedianColumns () {
+        if (medianColumns == null) {
+            medianColumns = new SampleColumns (getMedianMeasures ());
+        }
+        return medianColumns;
+    }
+
     // if more than one replicates, calculate the means
     synchronized public Measure[] getMedianMeasures () { 
         if (median == null) {
-            Map<Double, List<Double>> responses = 
-                new TreeMap<Double, List<Double>>();
-
-            for (Measure m : measures) {
-                Double t = m.getTime();
-                Double r = m.getResponse();
-                if (!m.getBlank() && t != null) {
-                    List<Double> lr = responses.get(t);
-                    if (lr == null) {
-                        responses.put(t, lr = new ArrayList<Double>());
-                    }
-                    if (r != null)
-                        lr.add(r);
+            SampleColumns cols = getColumns ();
+
+            // non-blank measures with time (a NaN time goes last),
+            //  ordered by time; there are only a handful and usually
+            //  already in order, so a simple insertion sort will do
+            int[] order = new int[cols.size()];
+            int size = 0;
+            for (int i = 0; i < cols.size(); ++i) {
+                if (!cols.blank[i] && cols.hasTime[i]) {
+                    int j = size++;
+                    for (; j > 0 && Double.compare
+                             (cols.time[order[j-1]], cols.time[i]) > 0; --j)
+                        order[j] = order[j-1];
+                    order[j] = i;
                 }
             }
 
             List<Measure> data = new ArrayList<Measure>();            
-            for (Map.Entry<Double, List<Double>> me : responses.entrySet()) {
-                Double t = me.getKey();
-                List<Double> lr = me.getValue();
+            double[] lr = new double[size];
+            for (int i = 0; i < size; ) {
+                double t = cols.time[order[i]];
+                int n = 0;
+                for (; i < size && Double.compare
+                         (cols.time[order[i]], t) == 0; ++i) {
+                    // a NaN response makes the mean NaN; only missing
+                    //  responses are left out
+                    if (cols.hasResponse[order[i]])
+                        lr[n++] = cols.response[order[i]];
+                }
+
                 Measure m = new Measure ("Median-"+t);
-                if (!lr.isEmpty()) {
+                if (n > 0) {
                     m.setTime(t, TimeUnit.MINUTES);
-                    if (lr.size() == 1) {
-                        m.setResponse(lr.get(0));
+                    if (n == 1) {
+                        m.setResponse(lr[0]);
                     }
-                    else if (lr.size() > 1) {
-                        Collections.sort(lr);
+                    else {
+                        Arrays.sort(lr, 0, n);
                         double total = 0;
-                        for (Double r : lr) {
-                            total += r;
+                        for (int j = 0; j < n; ++j) {
+                            total += lr[j];
                         }
-                        m.setResponse(total/lr.size());
+                        m.setResponse(total/n);
                         /*
                         int mid = lr.size()/2;
                         if (lr.size() % 2 == 0) {
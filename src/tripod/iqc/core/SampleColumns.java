@@ -0,0 +1,62 @@
+package tripod.iqc.core;
+
+import java.util.Collection;
+
+/**
+ * Immutable columnar view of a set of measures. Time, response, and
+ * log response are kept in primitive arrays with NaN for missing
+ * values so that the hot loops (median calculation, fitting, charting)
+ * don't have to chase and unbox a Measure per data point.
+ */
+public class SampleColumns {
+    final double[] time; // in minutes
+    final double[] response;
+    final double[] lnResponse; // natural log of response
+    final int[] replicate;
+    final boolean[] blank;
+    // whether time and response are there at all; a value that is
+    //  there might still be NaN
+    final boolean[] hasTime;
+    final boolean[] hasResponse;
+
+    public SampleColumns (Collection<Measure> measures) {
+        this (measures.toArray(new Measure[0]));
+    }
+
+    public SampleColumns (Measure[] measures) {
+        int size = measures.length;
+        time = new double[size];
+        response = new double[size];
+        lnResponse = new double[size];
+        replicate = new int[size];
+        blank = new boolean[size];
+        hasTime = new boolean[size];
+        hasResponse = new boolean[size];
+
+        for (int i = 0; i < size; ++i) {
+            Measure m = measures[i];
+            Double t = m.getTime();
+            Double r = m.getResponse();
+            time[i] = t != null ? t : Double.NaN;
+            response[i] = r != null ? r : Double.NaN;
+            lnResponse[i] = r != null ? Math.log(r) : Double.NaN;
+            replicate[i] = m.getReplicate();
+            blank[i] = m.getBlank();
+            hasTime[i] = t != null;
+            hasResponse[i] = r != null;
+        }
+    }
+
+    public int size () { return time.length; }
+
+    public double getTime (int i) { return time[i]; }
+    public double getResponse (int i) { return response[i]; }
+    public double getLnResponse (int i) { return lnResponse[i]; }
+    public int getReplicate (int i) { return replicate[i]; }
+    public boolean getBlank (int i) { return blank[i]; }
+
+    // does the i-th measure have both time and response?
+    public boolean isValid (int i) {
+        return !Double.isNaN(time[i]) && !Double.isNaN(response[i]);
+    }
+}
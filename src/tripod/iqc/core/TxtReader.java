@@ -19,8 +19,19 @@ public class TxtReader implements Reader {
         }
     }
 
+    // measure fields of the header columns; resolved once per compound
+    static final int SKIP = 0;
+    static final int NAME = 1;
+    static final int SAMPLE_TEXT = 2;
+    static final int PRIMARY_FLAGS = 3;
+    static final int RT = 4;
+    static final int AREA = 5;
+    static final int IS_AREA = 6;
+    static final int RESPONSE = 7;
+
     private int lines;
     private BufferedReader reader;
+    private int[] cells = new int[64]; // start & end offset of each cell
 
     public TxtReader (InputStream is) throws IOException {
         reader = new BufferedReader (new InputStreamReader (is));
@@ -60,22 +71,25 @@ public class TxtReader implements Reader {
         if (DEBUG > 0) 
             logger.info("** Start parsing compound " +compound+" at "+lines);
         
-        String[] header = null;
+        int[] columns = null; // field of each header column
         List<Measure> measures = new ArrayList<Measure>();
         int repl = 0;
 
         for (String line; (line = reader.readLine()) != null; ++lines) {
-            String[] tokens = line.split("\t");
-            if (header == null) {
-                if (tokens.length > 1) {
+            int ncells = split (line);
+            if (columns == null) {
+                if (ncells > 1) {
                     if (DEBUG > 0) {
                         System.out.print("Header: ");
-                        for (int i = 0; i < tokens.length; ++i)
-                            System.out.print(" "+i+":"+tokens[i]);
+                        for (int i = 0; i < ncells; ++i)
+                            System.out.print(" "+i+":"+cell (line, i));
                         System.out.println();
                     }
 
-                    header = tokens;
+                    columns = new int[ncells];
+                    for (int i = 0; i < ncells; ++i) {
+                        columns[i] = column (cell (line, i));
+                    }
                     sampl = new Sample (compound);
                     if (compound.equalsIgnoreCase("blank"))
                         sampl.setBlank(true);
@@ -84,18 +98,25 @@ public class TxtReader implements Reader {
                 }
             }
             // pick some number greater than 1
-            else if (sampl != null && tokens.length > 5) { // measure rows
+            else if (sampl != null && ncells > 5) { // measure rows
                 Measure measure = new Measure (repl);
-                for (int i = 0; i < tokens.length; ++i) {
-                    String h = header[i].trim();
-                    String v = tokens[i].trim();
+                for (int i = 0; i < ncells && i < columns.length; ++i) {
+                    if (columns[i] == SKIP) {
+                        continue;
+                    }
 
+                    String v = cell (line, i);
                     if (v.length() == 0) {
                         // no value
+                        continue;
                     }
-                    else if ("name".equalsIgnoreCase(h))
+
+                    switch (columns[i]) {
+                    case NAME:
                         measure.setName(v);
-                    else if ("sample text".equalsIgnoreCase(h)) {
+                        break;
+
+                    case SAMPLE_TEXT:
                         if (v.startsWith("Blank") || v.startsWith("blank")) {
                             // we use Blank to demarcate replicates
                             measure.setBlank(true);
@@ -117,40 +138,47 @@ public class TxtReader implements Reader {
                             }
                         }
                         measure.setComments(v);
-                    }
-                    else if ("primary flags".equalsIgnoreCase(h))
+                        break;
+
+                    case PRIMARY_FLAGS:
                         measure.setFlag(v);
-                    else if ("rt".equalsIgnoreCase(h)) {
+                        break;
+
+                    case RT:
                         try {
                             measure.setRt(Double.parseDouble(v));
                         }
                         catch (NumberFormatException ex) {
                             logger.warning("Bogus rt: "+v);
                         }
-                    }
-                    else if ("area".equalsIgnoreCase(h)) {
+                        break;
+
+                    case AREA:
                         try {
                             measure.setArea(Double.parseDouble(v));
                         }
                         catch (NumberFormatException ex) {
                             logger.warning("Bogus area: "+v);
                         }
-                    }
-                    else if ("is area".equalsIgnoreCase(h)) {
+                        break;
+
+                    case IS_AREA:
                         try {
                             measure.setIsArea(Double.parseDouble(v));
                         }
                         catch (NumberFormatException ex) {
                             logger.warning("Bogus IS area: "+v);
                         }
-                    }
-                    else if ("response".equalsIgnoreCase(h)) {
+                        break;
+
+                    case RESPONSE:
                         try {
                             measure.setResponse(Double.parseDouble(v));
                         }
                         catch (NumberFormatException ex) {
                             logger.warning("Bogus response: "+v);
                         }
+                        break;
                     }
                 }
 
@@ -175,6 +203,53 @@ public class TxtReader implements Reader {
         return sampl;
     }
 
+    /*
+     * Record the offsets of the tab separated cells of line in cells
+     * and return the number of cells, which is the same as the length
+     * of line.split("\t"), i.e., trailing empty cells are dropped.
+     */
+    int split (String line) {
+        int len = line.length(), n = 0, count = 0;
+        for (int s = 0, e; s <= len; s = e + 1) {
+            e = line.indexOf('\t', s);
+            if (e < 0) {
+                e = len;
+            }
+            if (2*n+1 >= cells.length) {
+                cells = Arrays.copyOf(cells, 2*cells.length);
+            }
+            cells[2*n] = s;
+            cells[2*n+1] = e;
+            if (e > s) {
+                count = n+1;
+            }
+            ++n;
+        }
+        return len == 0 ? 1 : count;
+    }
+
+    // the i-th cell of the last line split with leading and trailing
+    //  whitespace removed
+    String cell (String line, int i) {
+        int s = cells[2*i], e = cells[2*i+1];
+        while (s < e && line.charAt(s) <= ' ')
+            ++s;
+        while (e > s && line.charAt(e-1) <= ' ')
+            --e;
+        return line.substring(s, e);
+    }
+
+    static int column (String header) {
+        if ("name".equalsIgnoreCase(header)) return NAME;
+        if ("sample text".equalsIgnoreCase(header)) return SAMPLE_TEXT;
+        if ("primary flags".equalsIgnoreCase(header)) return PRIMARY_FLAGS;
+        if ("rt".equalsIgnoreCase(header)) return RT;
+        if ("area".equalsIgnoreCase(header)) return AREA;
+        if ("is area".equalsIgnoreCase(header)) return IS_AREA;
+        if ("response".equalsIgnoreCase(header)) return RESPONSE;
+        return SKIP;
+    }
+
     public static void main (String[] argv) throws Exception {
         Reader reader;
         if (argv.length == 0) {
@@ -1,5 +1,7 @@
 package tripod.iqc.service;
 
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import javax.sql.DataSource;
@@ -7,13 +9,885 @@ import java.sql.*;
 
 import tripod.iqc.core.*;
 
+/**
+ * Persistence of datasets, annotations, and fit results. All database
+ * access goes through here so that batch size, fetch size, and
+ * isolation are tuned in one place; the datasource is expected to pool
+ * its connections (and cache statements). Writes can optionally be
+ * queued and done in the background (write-behind); a queued write
+ * that fails for a transient reason is retried a few times before it's
+ * given up on. Writes given up on are kept and reported by the next
+ * flush(), and close() waits (up to SHUTDOWN_TIMEOUT) for all queued
+ * writes to finish. Annotations are always inserted right away since
+ * their callers need the per-row errors.
+ */
 public class PersistenceManager {
-    private static final Logger logger = 
+    private static final Logger logger =
         Logger.getLogger(PersistenceManager.class.getName());
 
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+    // number of times a queued write is retried
+    public static final int RETRIES = 3;
+    // seconds to wait for queued writes when they're no longer queued
+    public static final int SHUTDOWN_TIMEOUT = 30;
+
+    // sample id of an annotation (sample without the configuration)
+    static final String SAMPLE_ID = "case when locate('[', sample) > 0 "
+        +"then substring(sample, 1, locate('[', sample) - 1) "
+        +"else sample end";
+
+    public interface Visitor<T> {
+        void visit (T value);
+    }
+
+    // unit of work done with a connection
+    interface Work {
+        void run (Connection con) throws SQLException;
+    }
+
+    public static class Annotation {
+        long id;
+        String dataset;
+        String sample;
+        int save;
+        String comments;
+        String curator;
+
+        public Annotation (String dataset, String sample, boolean save,
+                           String comments, String curator) {
+            this.dataset = dataset;
+            this.sample = sample;
+            this.save = save ? 1 : 0;
+            this.comments = comments;
+            this.curator = curator;
+        }
+
+        Annotation (ResultSet rset) throws SQLException {
+            id = rset.getLong("anno_id");
+            dataset = rset.getString("dataset");
+            sample = rset.getString("sample");
+            save = rset.getInt("save");
+            comments = rset.getString("comments");
+            curator = rset.getString("curator");
+        }
+
+        public long getId () { return id; }
+        public String getDataset () { return dataset; }
+        public String getSample () { return sample; }
+        public int getSave () { return save; }
+        public String getComments () { return comments; }
+        public String getCurator () { return curator; }
+    }
+
+    /**
+     * Ranked fit of a sample. Samples are identified by their position
+     * (index) in the dataset since their names needn't be unique; key
+     * is the fit cache key of the sample (see ResultCache). config is
+     * the bit vector of the measures (out of size) that went into the
+     * fit. Missing values are NaN.
+     */
+    public static class FitResult {
+        String dataset;
+        int index;
+        String sample;
+        String key;
+        int rank;
+        int size;
+        long config;
+        double slope, slopeStdErr, intercept, interceptStdErr;
+        double mse, r2, score, halflife;
+
+        public FitResult (String dataset, int index, String sample,
+                          String key, int rank, int size, long config,
+                          double slope, double slopeStdErr,
+                          double intercept, double interceptStdErr,
+                          double mse, double r2, double score,
+                          double halflife) {
+            this.dataset = dataset;
+            this.index = index;
+            this.sample = sample;
+            this.key = key;
+            this.rank = rank;
+            this.size = size;
+            this.config = config;
+            this.slope = slope;
+            this.slopeStdErr = slopeStdErr;
+            this.intercept = intercept;
+            this.interceptStdErr = interceptStdErr;
+            this.mse = mse;
+            this.r2 = r2;
+            this.score = score;
+            this.halflife = halflife;
+        }
+
+        FitResult (ResultSet rset) throws SQLException {
+            this (rset.getString("dataset"), rset.getInt("sample_index"),
+                  rset.getString("sample"), rset.getString("fit_key"),
+                  rset.getInt("fit_rank"), rset.getInt("measures"),
+                  rset.getLong("config"), getDouble (rset, "slope"),
+                  getDouble (rset, "slope_stderr"),
+                  getDouble (rset, "intercept"),
+                  getDouble (rset, "intercept_stderr"),
+                  getDouble (rset, "mse"), getDouble (rset, "r2"),
+                  getDouble (rset, "score"), getDouble (rset, "halflife"));
+        }
+
+        public String getDataset () { return dataset; }
+        public int getIndex () { return index; }
+        public String getSample () { return sample; }
+        public String getKey () { return key; }
+        public int getRank () { return rank; }
+        public int getSize () { return size; }
+        public long getConfig () { return config; }
+        public double getSlope () { return slope; }
+        public double getSlopeStdErr () { return slopeStdErr; }
+        public double getIntercept () { return intercept; }
+        public double getInterceptStdErr () { return interceptStdErr; }
+        public double getMSE () { return mse; }
+        public double getR2 () { return r2; }
+        public double getScore () { return score; }
+        public double getHalflife () { return halflife; }
+    }
+
     private DataSource datasource;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int fetchSize = DEFAULT_FETCH_SIZE;
+    private int isolation = -1; // driver default
+    private ThreadPoolExecutor writer; // null if writes aren't queued
+    // queued writes given up on since the last flush()
+    private final List<SQLException> failures =
+        new ArrayList<SQLException>();
 
     public PersistenceManager (DataSource datasource) {
         this.datasource = datasource;
     }
+
+    public DataSource getDataSource () { return datasource; }
+    public void setBatchSize (int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException
+                ("Bogus batch size: "+batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+    public int getBatchSize () { return batchSize; }
+    // Integer.MIN_VALUE streams rows with MySQL's Connector/J
+    public void setFetchSize (int fetchSize) { this.fetchSize = fetchSize; }
+    public int getFetchSize () { return fetchSize; }
+    // one of the Connection.TRANSACTION_* levels; -1 for the default
+    public void setIsolation (int isolation) { this.isolation = isolation; }
+    public int getIsolation () { return isolation; }
+
+    /**
+     * Queue up to capacity writes (and block when it's full) instead of
+     * writing right away; 0 turns it off.
+     */
+    public synchronized void setWriteBehind (int capacity) {
+        drain ();
+        if (writer != null) {
+            writer.shutdown();
+            // writes queued after the drain are still to be done
+            try {
+                if (!writer.awaitTermination
+                    (SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+                    logger.severe(writer.getQueue().size()
+                                  +" queued write(s) not done after "
+                                  +SHUTDOWN_TIMEOUT+"s!");
+                }
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                logger.warning("Interrupted waiting for queued writes");
+            }
+            writer = null;
+        }
+        if (capacity > 0) {
+            writer = new ThreadPoolExecutor
+                (1, 1, 0l, TimeUnit.MILLISECONDS,
+                 new ArrayBlockingQueue<Runnable>(capacity),
+                 new ThreadFactory () {
+                     public Thread newThread (Runnable r) {
+                         Thread t = new Thread (r, "PersistenceManager");
+                         t.setDaemon(true);
+                         return t;
+                     }
+                 },
+                 new RejectedExecutionHandler () {
+                     public void rejectedExecution
+                         (Runnable r, ThreadPoolExecutor executor) {
+                         if (executor.isShutdown()) {
+                             r.run(); // write it ourselves
+                             return;
+                         }
+                         try {
+                             executor.getQueue().put(r);
+                         }
+                         catch (InterruptedException ex) {
+                             Thread.currentThread().interrupt();
+                             throw new RejectedExecutionException (ex);
+                         }
+                     }
+                 });
+        }
+    }
+
+    // number of writes waiting in the queue
+    public synchronized int getPendingWrites () {
+        return writer != null ? writer.getQueue().size() : 0;
+    }
+
+    /**
+     * Wait for all queued writes to finish; if any of them (or any
+     * queued since the last flush) failed, throw an exception whose
+     * chain (see SQLException.getNextException) has all the failures.
+     */
+    public void flush () throws SQLException {
+        drain ();
+
+        SQLException failed = null;
+        synchronized (failures) {
+            if (!failures.isEmpty()) {
+                failed = new SQLException
+                    (failures.size()+" queued write(s) failed; first error: "
+                     +failures.get(0).getMessage(), failures.get(0));
+                for (SQLException ex : failures) {
+                    failed.setNextException(ex);
+                }
+                failures.clear();
+            }
+        }
+        if (failed != null) {
+            throw failed;
+        }
+    }
+
+    // wait for all queued writes to finish
+    void drain () {
+        ThreadPoolExecutor w;
+        synchronized (this) {
+            w = writer;
+        }
+        if (w != null) {
+            try {
+                // the writer is single threaded, so once this runs
+                //  everything before it has been written
+                w.submit(new Runnable () {
+                        public void run () {}
+                    }).get();
+            }
+            catch (Exception ex) {
+                logger.log(Level.WARNING, "Can't flush writes", ex);
+            }
+        }
+    }
+
+    /**
+     * Flush and stop queueing writes
+     */
+    public void close () {
+        setWriteBehind (0);
+        synchronized (failures) {
+            for (SQLException ex : failures) {
+                logger.log(Level.SEVERE, "Queued write failed", ex);
+            }
+            failures.clear();
+        }
+    }
+
+    Connection getConnection () throws SQLException {
+        Connection con = datasource.getConnection();
+        if (isolation >= 0) {
+            con.setTransactionIsolation(isolation);
+        }
+        return con;
+    }
+
+    // do the work in one transaction
+    void execute (Work work) throws SQLException {
+        Connection con = getConnection ();
+        try {
+            con.setAutoCommit(false);
+            boolean committed = false;
+            try {
+                work.run(con);
+                con.commit();
+                committed = true;
+            }
+            finally {
+                // whatever went wrong (not just SQLException), turning
+                //  autocommit back on would commit the partial work
+                if (!committed) {
+                    try {
+                        con.rollback();
+                    }
+                    catch (SQLException ex) {
+                        logger.log(Level.WARNING, "Can't roll back", ex);
+                    }
+                }
+                con.setAutoCommit(true);
+            }
+        }
+        finally {
+            con.close();
+        }
+    }
+
+    // do the work now or queue it
+    void write (final String what, final Work work) throws SQLException {
+        ThreadPoolExecutor w;
+        synchronized (this) {
+            w = writer;
+        }
+        if (w == null) {
+            execute (work);
+            return;
+        }
+
+        w.execute(new Runnable () {
+                public void run () {
+                    for (int i = 0; ; ++i) {
+                        try {
+                            execute (work);
+                            return;
+                        }
+                        catch (SQLException ex) {
+                            if (i == RETRIES || !isTransient (ex)) {
+                                logger.log(Level.SEVERE, "Giving up on "
+                                           +what+" after "+(i+1)
+                                           +" attempt(s)", ex);
+                                synchronized (failures) {
+                                    failures.add(ex);
+                                }
+                                return;
+                            }
+                            logger.log(Level.WARNING, what+" failed; "
+                                       +"retrying", ex);
+                            try {
+                                Thread.sleep(1000l << i);
+                            }
+                            catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                synchronized (failures) {
+                                    failures.add(ex);
+                                }
+                                return;
+                            }
+                        }
+                    }
+                }
+            });
+    }
+
+    /*
+     * Could the write succeed if tried again? Errors such as duplicate
+     * keys or bad SQL fail the same way every time; lost connections
+     * and errors the driver doesn't classify are worth retrying.
+     */
+    static boolean isTransient (SQLException ex) {
+        return !(ex instanceof SQLNonTransientException)
+            || ex instanceof SQLNonTransientConnectionException;
+    }
+
+    PreparedStatement prepare (Connection con, String sql, int limit)
+        throws SQLException {
+        PreparedStatement pstm = con.prepareStatement(sql);
+        // statements might be cached, so always (re)set these
+        pstm.setMaxRows(Math.max(0, limit));
+        pstm.setFetchSize(fetchSize);
+        return pstm;
+    }
+
+    /*
+     * Execute the batch and return the number of rows updated; failed
+     * rows (by their index into rows) are added to errors.
+     */
+    static int executeBatch (PreparedStatement pstm, List<Integer> rows,
+                             Map<Integer, String> errors)
+        throws SQLException {
+        if (rows.isEmpty()) {
+            return 0;
+        }
+
+        int count = 0;
+        int[] counts;
+        try {
+            counts = pstm.executeBatch();
+        }
+        catch (BatchUpdateException ex) {
+            counts = ex.getUpdateCounts();
+            if (counts == null) {
+                counts = new int[0];
+            }
+            logger.log(Level.WARNING, "Batch failed after "+counts.length
+                       +" of "+rows.size()+" row(s)", ex);
+            if (counts.length < rows.size()) {
+                // the driver stopped at the first failure, so the
+                //  remaining rows were never executed
+                errors.put(rows.get(counts.length), ex.getMessage());
+                for (int i = counts.length + 1; i < rows.size(); ++i) {
+                    errors.put(rows.get(i), "not executed");
+                }
+            }
+        }
+
+        for (int i = 0; i < counts.length; ++i) {
+            if (counts[i] == Statement.EXECUTE_FAILED) {
+                errors.put(rows.get(i), "failed");
+            }
+            else if (counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO) {
+                ++count;
+            }
+        }
+        rows.clear();
+        pstm.clearBatch();
+
+        return count;
+    }
+
+    /**
+     * Number of annotations of each dataset; dataset names are compared
+     * ignoring case, as the database's group by does
+     */
+    public Map<String, Integer> getAnnotationCounts () throws SQLException {
+        Map<String, Integer> counts =
+            new TreeMap<String, Integer>(String.CASE_INSENSITIVE_ORDER);
+        Connection con = getConnection ();
+        try {
+            PreparedStatement pstm = prepare
+                (con, "select dataset, count(*) from "
+                 +"iqc_validator_annotation group by dataset", 0);
+            ResultSet rset = pstm.executeQuery();
+            while (rset.next()) {
+                counts.put(rset.getString(1), rset.getInt(2));
+            }
+            rset.close();
+            pstm.close();
+        }
+        finally {
+            con.close();
+        }
+        return counts;
+    }
+
+    /**
+     * Insert the annotations in one transaction and return the number
+     * inserted; annotations that failed (by their index) are added to
+     * errors without affecting the others.
+     */
+    public int insertAnnotations (final List<Annotation> annotations,
+                                  final Map<Integer, String> errors)
+        throws SQLException {
+        final int[] count = new int[1];
+        execute (new Work () {
+                public void run (Connection con) throws SQLException {
+                    count[0] = insertAnnotations (con, annotations, errors);
+                }
+            });
+        return count[0];
+    }
+
+    int insertAnnotations (Connection con, List<Annotation> annotations,
+                           Map<Integer, String> errors)
+        throws SQLException {
+        PreparedStatement pstm = con.prepareStatement
+            ("insert into iqc_validator_annotation"
+             +"(dataset,sample,save,comments,curator) "
+             +"values(?,?,?,?,?)");
+        int count = 0;
+        try {
+            List<Integer> batch = new ArrayList<Integer>();
+            for (int i = 0; i < annotations.size(); ++i) {
+                Annotation a = annotations.get(i);
+                pstm.setString(1, a.dataset);
+                pstm.setString(2, a.sample);
+                pstm.setInt(3, a.save);
+                pstm.setString(4, a.comments);
+                pstm.setString(5, a.curator);
+                pstm.addBatch();
+                batch.add(i);
+                if (batch.size() >= batchSize) {
+                    count += executeBatch (pstm, batch, errors);
+                }
+            }
+            count += executeBatch (pstm, batch, errors);
+        }
+        finally {
+            pstm.close();
+        }
+        return count;
+    }
+
+    /**
+     * Delete annotations by id and return the number of rows deleted
+     * for each (0 if it doesn't exist, and Statement.EXECUTE_FAILED if
+     * it can't be deleted).
+     */
+    public int[] deleteAnnotations (final long... ids) throws SQLException {
+        final int[] counts = new int[ids.length];
+        execute (new Work () {
+                public void run (Connection con) throws SQLException {
+                    PreparedStatement pstm = con.prepareStatement
+                        ("delete from iqc_validator_annotation "
+                         +"where anno_id = ?");
+                    try {
+                        for (int i = 0; i < ids.length; ++i) {
+                            pstm.setLong(1, ids[i]);
+                            try {
+                                counts[i] = pstm.executeUpdate();
+                            }
+                            catch (SQLException ex) {
+                                logger.log(Level.WARNING, "Can't delete "
+                                           +"annotation "+ids[i], ex);
+                                counts[i] = Statement.EXECUTE_FAILED;
+                            }
+                        }
+                    }
+                    finally {
+                        pstm.close();
+                    }
+                }
+            });
+        return counts;
+    }
+
+    /**
+     * Visit the latest annotation of each sample of dataset (or of all
+     * datasets starting with it if prefix is true) newest first. Only
+     * annotations older than after (if it's not negative) and at most
+     * limit (if it's positive) annotations are visited.
+     */
+    public void getLatestAnnotations (String dataset, boolean prefix,
+                                      long after, int limit,
+                                      Visitor<Annotation> visitor)
+        throws SQLException {
+        Connection con = getConnection ();
+        try {
+            PreparedStatement pstm = prepare
+                (con, "select a.* from iqc_validator_annotation a "
+                 +"join (select max(anno_id) as anno_id from "
+                 +"iqc_validator_annotation where dataset "
+                 +(prefix ? "like ?" : "= ?")
+                 +" group by dataset, "+SAMPLE_ID+") l "
+                 +"on a.anno_id = l.anno_id "
+                 +"where a.anno_id < ? order by a.anno_id desc", limit);
+            pstm.setString(1, prefix ? like (dataset)+"%" : dataset);
+            pstm.setLong(2, after < 0 ? Long.MAX_VALUE : after);
+            visit (pstm, visitor);
+            pstm.close();
+        }
+        finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Visit every annotation of dataset in the order they were made
+     */
+    public void getAnnotations (String dataset, Visitor<Annotation> visitor)
+        throws SQLException {
+        Connection con = getConnection ();
+        try {
+            PreparedStatement pstm = prepare
+                (con, "select * from iqc_validator_annotation "
+                 +"where dataset = ? order by anno_id", 0);
+            pstm.setString(1, dataset);
+            visit (pstm, visitor);
+            pstm.close();
+        }
+        finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Visit every annotation ordered by dataset, sample, and time
+     * unless paging (after isn't negative or limit is positive), in
+     * which case they're ordered by id.
+     */
+    public void getAnnotations (long after, int limit,
+                                Visitor<Annotation> visitor)
+        throws SQLException {
+        Connection con = getConnection ();
+        try {
+            PreparedStatement pstm;
+            if (after < 0 && limit <= 0) {
+                pstm = prepare
+                    (con, "select * from iqc_validator_annotation "
+                     +"order by dataset, sample, annotation_time", 0);
+            }
+            else {
+                pstm = prepare
+                    (con, "select * from iqc_validator_annotation "
+                     +"where anno_id > ? order by anno_id", limit);
+                pstm.setLong(1, after);
+            }
+            visit (pstm, visitor);
+            pstm.close();
+        }
+        finally {
+            con.close();
+        }
+    }
+
+    static void visit (PreparedStatement pstm, Visitor<Annotation> visitor)
+        throws SQLException {
+        ResultSet rset = pstm.executeQuery();
+        try {
+            while (rset.next()) {
+                visitor.visit(new Annotation (rset));
+            }
+        }
+        finally {
+            rset.close();
+        }
+    }
+
+    // escape the wildcards of a like pattern
+    static String like (String s) {
+        return s.replace("\\", "\\\\").replace("%", "\\%")
+            .replace("_", "\\_");
+    }
+
+    /**
+     * Create the fit result tables if they don't exist
+     */
+    public void createFitResultTable () throws SQLException {
+        Connection con = getConnection ();
+        try {
+            Statement stm = con.createStatement();
+            stm.execute("create table if not exists iqc_fit_result ("
+                        +"dataset varchar(255) not null, "
+                        +"sample_index int not null, "
+                        +"sample varchar(255) not null, "
+                        +"fit_key char(40), "
+                        +"fit_rank int not null, "
+                        +"measures int not null, "
+                        +"config bigint not null, "
+                        +"slope double, "
+                        +"slope_stderr double, "
+                        +"intercept double, "
+                        +"intercept_stderr double, "
+                        +"mse double, "
+                        +"r2 double, "
+                        +"score double, "
+                        +"halflife double, "
+                        +"primary key (dataset, sample_index, fit_rank))");
+            // SHA1 of the dataset file whose results are complete
+            stm.execute("create table if not exists iqc_fit_dataset ("
+                        +"dataset varchar(255) not null, "
+                        +"sha1 char(40) not null, "
+                        +"fitted timestamp not null, "
+                        +"primary key (dataset))");
+            stm.close();
+        }
+        finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Replace the fit results of every sample in results (which are
+     * expected to be all of the fit results of those samples)
+     */
+    public void saveFitResults (final List<FitResult> results)
+        throws SQLException {
+        write (results.size()+" fit result(s)", new Work () {
+                public void run (Connection con) throws SQLException {
+                    saveFitResults (con, results);
+                }
+            });
+    }
+
+    void saveFitResults (Connection con, List<FitResult> results)
+        throws SQLException {
+        PreparedStatement del = con.prepareStatement
+            ("delete from iqc_fit_result where dataset = ? "
+             +"and sample_index = ?");
+        PreparedStatement ins = con.prepareStatement
+            ("insert into iqc_fit_result(dataset,sample_index,sample,"
+             +"fit_key,fit_rank,measures,config,slope,slope_stderr,"
+             +"intercept,intercept_stderr,mse,r2,score,halflife) "
+             +"values(?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)");
+        try {
+            Map<Integer, String> errors = new TreeMap<Integer, String>();
+            Set<String> samples = new HashSet<String>();
+            List<Integer> batch = new ArrayList<Integer>();
+            for (int i = 0; i < results.size(); ++i) {
+                FitResult r = results.get(i);
+                if (samples.add(r.dataset+"\t"+r.index)) {
+                    del.setString(1, r.dataset);
+                    del.setInt(2, r.index);
+                    del.addBatch();
+                    batch.add(i);
+                    if (batch.size() >= batchSize) {
+                        executeBatch (del, batch, errors);
+                    }
+                }
+            }
+            executeBatch (del, batch, errors);
+
+            for (int i = 0; i < results.size(); ++i) {
+                FitResult r = results.get(i);
+                ins.setString(1, r.dataset);
+                ins.setInt(2, r.index);
+                ins.setString(3, r.sample);
+                ins.setString(4, r.key);
+                ins.setInt(5, r.rank);
+                ins.setInt(6, r.size);
+                ins.setLong(7, r.config);
+                setDouble (ins, 8, r.slope);
+                setDouble (ins, 9, r.slopeStdErr);
+                setDouble (ins, 10, r.intercept);
+                setDouble (ins, 11, r.interceptStdErr);
+                setDouble (ins, 12, r.mse);
+                setDouble (ins, 13, r.r2);
+                setDouble (ins, 14, r.score);
+                setDouble (ins, 15, r.halflife);
+                ins.addBatch();
+                batch.add(i);
+                if (batch.size() >= batchSize) {
+                    executeBatch (ins, batch, errors);
+                }
+            }
+            executeBatch (ins, batch, errors);
+
+            if (!errors.isEmpty()) {
+                // all or nothing so that samples aren't left half saved;
+                //  the same rows fail again, so it's not worth retrying
+                throw new SQLNonTransientException
+                    (errors.size()+" fit result(s) can't be saved; "
+                     +"first error: "+errors.values().iterator().next());
+            }
+        }
+        finally {
+            del.close();
+            ins.close();
+        }
+    }
+
+    /**
+     * Remove all fit results of dataset
+     */
+    public void deleteFitResults (final String dataset) throws SQLException {
+        write ("fit results of "+dataset, new Work () {
+                public void run (Connection con) throws SQLException {
+                    // the digest goes first so that the results aren't
+                    //  taken for complete while they're being deleted
+                    for (String table : new String[]{
+                            "iqc_fit_dataset", "iqc_fit_result"}) {
+                        PreparedStatement pstm = con.prepareStatement
+                            ("delete from "+table+" where dataset = ?");
+                        try {
+                            pstm.setString(1, dataset);
+                            pstm.executeUpdate();
+                        }
+                        finally {
+                            pstm.close();
+                        }
+                    }
+                }
+            });
+    }
+
+    /**
+     * Mark the fit results of dataset as complete for the dataset file
+     * with the given (hex encoded) SHA1. This is expected to follow
+     * the last saveFitResults of the dataset.
+     */
+    public void saveFitDigest (final String dataset, final String sha1)
+        throws SQLException {
+        write ("fit digest of "+dataset, new Work () {
+                public void run (Connection con) throws SQLException {
+                    PreparedStatement del = con.prepareStatement
+                        ("delete from iqc_fit_dataset where dataset = ?");
+                    PreparedStatement ins = con.prepareStatement
+                        ("insert into iqc_fit_dataset(dataset,sha1,fitted) "
+                         +"values(?,?,?)");
+                    try {
+                        del.setString(1, dataset);
+                        del.executeUpdate();
+                        ins.setString(1, dataset);
+                        ins.setString(2, sha1);
+                        ins.setTimestamp(3, new Timestamp
+                                         (System.currentTimeMillis()));
+                        ins.executeUpdate();
+                    }
+                    finally {
+                        del.close();
+                        ins.close();
+                    }
+                }
+            });
+    }
+
+    /**
+     * SHA1 of the dataset file that dataset's fit results are of; null
+     * if dataset hasn't been (completely) fitted
+     */
+    public String getFitDigest (String dataset) throws SQLException {
+        Connection con = getConnection ();
+        try {
+            PreparedStatement pstm = con.prepareStatement
+                ("select sha1 from iqc_fit_dataset where dataset = ?");
+            try {
+                pstm.setString(1, dataset);
+                ResultSet rset = pstm.executeQuery();
+                String sha1 = rset.next() ? rset.getString(1) : null;
+                rset.close();
+                return sha1;
+            }
+            finally {
+                pstm.close();
+            }
+        }
+        finally {
+            con.close();
+        }
+    }
+
+    static double getDouble (ResultSet rset, String column)
+        throws SQLException {
+        double value = rset.getDouble(column);
+        return rset.wasNull() ? Double.NaN : value;
+    }
+
+    // databases can't store NaN or infinity
+    static void setDouble (PreparedStatement pstm, int index, double value)
+        throws SQLException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            pstm.setNull(index, Types.DOUBLE);
+        }
+        else {
+            pstm.setDouble(index, value);
+        }
+    }
+
+    /**
+     * Visit the fit results of dataset ordered by sample (position)
+     * and rank
+     */
+    public void getFitResults (String dataset, Visitor<FitResult> visitor)
+        throws SQLException {
+        Connection con = getConnection ();
+        try {
+            PreparedStatement pstm = prepare
+                (con, "select * from iqc_fit_result where dataset = ? "
+                 +"order by sample_index, fit_rank", 0);
+            pstm.setString(1, dataset);
+            ResultSet rset = pstm.executeQuery();
+            try {
+                while (rset.next()) {
+                    visitor.visit(new FitResult (rset));
+                }
+            }
+            finally {
+                rset.close();
+                pstm.close();
+            }
+        }
+        finally {
+            con.close();
+        }
+    }
 }
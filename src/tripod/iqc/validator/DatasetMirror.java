@@ -0,0 +1,244 @@
+package tripod.iqc.validator;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.security.MessageDigest;
+import java.security.DigestInputStream;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * Local copy of the datasets served by IQCDatasetServlet. Each dataset
+ * is stored once under the SHA-1 of its content (the same digest the
+ * servlet computes on upload), and an index maps dataset names to
+ * digests along with the validators (ETag and Last-Modified) the server
+ * returned. A dataset that's already mirrored is revalidated with a
+ * conditional GET, so only datasets that have changed are downloaded
+ * again. If the server can't be reached, the mirrored copy is used.
+ * Along with each file, its parsed samples can be kept in the binary
+ * format of BinWriter (see getBinary) so that they're only parsed once.
+ */
+public class DatasetMirror {
+    private static final Logger logger =
+        Logger.getLogger(DatasetMirror.class.getName());
+
+    static final String INDEX = "index";
+    static final String BINARY = ".iqcb";
+
+    static class Entry {
+        String sha1;
+        String etag;
+        long lastModified;
+    }
+
+    private final File dir;
+    private final Map<String, Entry> index = new TreeMap<String, Entry>();
+
+    public DatasetMirror (File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException ("Can't create mirror directory "+dir);
+        }
+        this.dir = dir;
+        loadIndex ();
+    }
+
+    public File getDirectory () { return dir; }
+
+    /**
+     * Where the parsed samples of a mirrored file (as returned by
+     * fetch) are kept; the file might not exist yet.
+     */
+    public File getBinary (File file) {
+        return new File (dir, file.getName()+BINARY);
+    }
+
+    /**
+     * SHA-1 of the content of a file returned by fetch
+     */
+    public String getDigest (File file) {
+        return file.getName();
+    }
+
+    /**
+     * Return the local copy of dataset name fetched (or revalidated)
+     * with the given connection; the connection must not be connected
+     * yet.
+     */
+    public File fetch (String name, URLConnection conn) throws IOException {
+        Entry cached;
+        synchronized (this) {
+            cached = index.get(name);
+        }
+        if (cached != null && !file(cached.sha1).exists()) {
+            cached = null;
+        }
+
+        HttpURLConnection http = conn instanceof HttpURLConnection
+            ? (HttpURLConnection)conn : null;
+        if (cached != null) {
+            if (cached.etag != null) {
+                conn.setRequestProperty("If-None-Match", cached.etag);
+            }
+            if (cached.lastModified > 0l) {
+                conn.setIfModifiedSince(cached.lastModified);
+            }
+        }
+
+        try {
+            if (http != null && cached != null && http.getResponseCode()
+                == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                http.disconnect();
+                return file (cached.sha1);
+            }
+            return download (name, conn);
+        }
+        catch (IOException ex) {
+            if (cached == null) {
+                throw ex;
+            }
+            logger.log(Level.WARNING, "Can't revalidate "+name
+                       +"; using mirrored copy", ex);
+            return file (cached.sha1);
+        }
+    }
+
+    File download (String name, URLConnection conn) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA1");
+        }
+        catch (Exception ex) {
+            throw new IOException (ex);
+        }
+
+        File tmp = File.createTempFile("dataset", ".tmp", dir);
+        try {
+            InputStream is = new DigestInputStream
+                (conn.getInputStream(), md);
+            OutputStream os = new FileOutputStream (tmp);
+            try {
+                byte[] buf = new byte[1<<16];
+                for (int nb; (nb = is.read(buf, 0, buf.length)) > 0; ) {
+                    os.write(buf, 0, nb);
+                }
+            }
+            finally {
+                os.close();
+                is.close();
+            }
+
+            Entry e = new Entry ();
+            e.sha1 = hex (md.digest());
+            e.etag = conn.getHeaderField("ETag");
+            e.lastModified = conn.getLastModified();
+
+            File file = file (e.sha1);
+            // identical content might already be mirrored under
+            //  another name
+            if (!file.exists() && !tmp.renameTo(file)) {
+                throw new IOException ("Can't write mirror file "+file);
+            }
+            update (name, e);
+            logger.info(name+" ==> "+file);
+            return file;
+        }
+        finally {
+            tmp.delete();
+        }
+    }
+
+    synchronized void update (String name, Entry e) throws IOException {
+        Entry old = index.put(name, e);
+        if (old != null && !old.sha1.equals(e.sha1)) {
+            boolean shared = false;
+            for (Entry ie : index.values()) {
+                if (ie.sha1.equals(old.sha1)) {
+                    shared = true;
+                    break;
+                }
+            }
+            if (!shared) {
+                file(old.sha1).delete();
+                getBinary(file (old.sha1)).delete();
+            }
+        }
+        saveIndex ();
+    }
+
+    static String hex (byte[] digest) {
+        StringBuilder sb = new StringBuilder ();
+        for (int i = 0; i < digest.length; ++i)
+            sb.append(String.format("%1$02x", digest[i] & 0xff));
+        return sb.toString();
+    }
+
+    File file (String sha1) {
+        return new File (dir, sha1);
+    }
+
+    /*
+     * The index is a tab-delimited file with one line per dataset:
+     * name, sha1, last modified, and etag (if any).
+     */
+    void loadIndex () throws IOException {
+        File file = new File (dir, INDEX);
+        if (!file.exists()) {
+            return;
+        }
+
+        BufferedReader br = new BufferedReader
+            (new InputStreamReader (new FileInputStream (file), "utf8"));
+        try {
+            for (String line; (line = br.readLine()) != null; ) {
+                String[] toks = line.split("\t");
+                if (toks.length < 3) {
+                    logger.warning("Bogus mirror index line: "+line);
+                    continue;
+                }
+                Entry e = new Entry ();
+                e.sha1 = toks[1];
+                try {
+                    e.lastModified = Long.parseLong(toks[2]);
+                }
+                catch (NumberFormatException ex) {
+                }
+                if (toks.length > 3) {
+                    e.etag = toks[3];
+                }
+                index.put(toks[0], e);
+            }
+        }
+        finally {
+            br.close();
+        }
+    }
+
+    void saveIndex () throws IOException {
+        File tmp = File.createTempFile(INDEX, ".tmp", dir);
+        PrintWriter pw = new PrintWriter
+            (new OutputStreamWriter (new FileOutputStream (tmp), "utf8"));
+        try {
+            for (Map.Entry<String, Entry> me : index.entrySet()) {
+                Entry e = me.getValue();
+                pw.print(me.getKey()+"\t"+e.sha1+"\t"+e.lastModified);
+                if (e.etag != null) {
+                    pw.print("\t"+e.etag);
+                }
+                pw.println();
+            }
+        }
+        finally {
+            pw.close();
+        }
+
+        File file = new File (dir, INDEX);
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException ("Can't write mirror index "+file);
+            }
+        }
+    }
+}
@@ -69,7 +69,7 @@ public class IQCValidator extends JFrame
             }
 
     enum Format {
-        Txt, Csv;
+        Txt, Csv, Zip;
     }
 
     static double DEFAULT_CYP_CONC = 29.03;
@@ -121,19 +121,56 @@ public class IQCValidator extends JFrame
 
     static class SampleData {
         Sample sample;
-        List<Estimator.Result> results;
+        volatile List<Estimator.Result> results;
         DefaultXYDataset dataset;
         DefaultXYDataset ratioDS; // ratio dataset
         boolean stable = false;
+        boolean scheduled; // queued for a background fit
 
         SampleData (Sample sample, List<Estimator.Result> results) {
             this.sample = sample;
             this.results = results;
         }
 
-        public int size () { return results.size(); }
-        public Estimator.Result getResult (int i) { return results.get(i); }
-        public List<Estimator.Result> getResults () { return results; }
+        // results are fitted on demand with fit()
+        SampleData (Sample sample) {
+            this.sample = sample;
+        }
+
+        public int size () { return getResults().size(); }
+        public Estimator.Result getResult (int i) { 
+            return getResults().get(i); 
+        }
+        public List<Estimator.Result> getResults () { 
+            boolean fitted = false;
+            synchronized (this) {
+                if (results == null) {
+                    results = fit ();
+                    fitted = true;
+                }
+            }
+            // outside of the lock as fitted() might need other locks
+            if (fitted) {
+                fitted ();
+            }
+            return results; 
+        }
+        public boolean isFitted () { return results != null; }
+
+        // mark for a background fit; false if fitted or already queued
+        synchronized boolean schedule () {
+            if (results != null || scheduled) {
+                return false;
+            }
+            return scheduled = true;
+        }
+
+        protected List<Estimator.Result> fit () {
+            return new ArrayList<Estimator.Result>();
+        }
+        // called once right after fit()
+        protected void fitted () {
+        }
 
         public XYDataset getDataset () {
             instrumentDatasets ();
@@ -153,34 +190,35 @@ public class IQCValidator extends JFrame
             ratioDS = new DefaultXYDataset ();
             
             int[] repls = sample.getReplicates();
+            SampleColumns cols = sample.getColumns();
+            int[] index = new int[cols.size()];
             Double minLnRes = null, maxLnRes = null;
             for (int k = 0; k < repls.length; ++k) {
-                List<Measure> measures = new ArrayList<Measure>();
+                int size = 0;
                 Double r0 = null;
                 
-                for (Measure m : sample.getMeasures(repls[k])) {
-                    Double r = m.getResponse();
-                    Double t = m.getTime();
-                    if (m.getBlank() || r == null || t == null) {
+                for (int i = 0; i < cols.size(); ++i) {
+                    if (cols.getReplicate(i) != repls[k] 
+                        || cols.getBlank(i) || !cols.isValid(i)) {
                         // skip this 
                     }
                     else {
-                        if (t.equals(0.)) {
-                            r0 = r;
-                            minLnRes = Math.log(r);
+                        if (cols.getTime(i) == 0.) {
+                            r0 = cols.getResponse(i);
+                            minLnRes = cols.getLnResponse(i);
                         }
-                        measures.add(m);
+                        index[size++] = i;
                     }
                 }
                 
-                if (!measures.isEmpty()) {
-                    double[][] data = new double[2][measures.size()];
+                if (size > 0) {
+                    double[][] data = new double[2][size];
                     double[][] ratio = r0 != null 
-                        ? new double[2][measures.size()] : null;
-                    for (int i = 0; i < measures.size(); ++i) {
-                        Double r = measures.get(i).getResponse();
-                        Double t = measures.get(i).getTime();
-                        data[0][i] = maxLnRes = Math.log(r); // y
+                        ? new double[2][size] : null;
+                    for (int i = 0; i < size; ++i) {
+                        double r = cols.getResponse(index[i]);
+                        double t = cols.getTime(index[i]);
+                        data[0][i] = maxLnRes = cols.getLnResponse(index[i]);
                         data[1][i] = t; // x
                         
                         if (ratio != null) {
@@ -231,7 +269,23 @@ public class IQCValidator extends JFrame
                         (false, new FileInputStream (file));
                     break;
                 case Csv:
-                    root = loadSampleTreeCsv (new FileInputStream (file));
+                    MappedCsvReader reader = new MappedCsvReader (file);
+                    try {
+                        root = loadSampleTreeCsv (reader);
+                    }
+                    finally {
+                        reader.close();
+                    }
+                    break;
+                case Zip:
+                    // fit straight from the instrument export
+                    ZipFile zf = new ZipFile (file);
+                    try {
+                        root = loadSampleTreeCsv (new IqcZipReader (zf));
+                    }
+                    finally {
+                        zf.close();
+                    }
                     break;
                 default:
                     return new RuntimeException
@@ -415,6 +469,10 @@ public class IQCValidator extends JFrame
         DefaultMutableTreeNode root;
         Map<String, Boolean> saves = new HashMap<String, Boolean>();
         Map<String, String> curators = new HashMap<String, String>();
+        Set<String> savedSamples = new HashSet<String>();
+        // samples whose saved results have been loaded
+        Set<SampleData> loaded = Collections.newSetFromMap
+            (new IdentityHashMap<SampleData, Boolean>());
         
         LoadSavedResults (String dataset, DefaultMutableTreeNode root) {
             this.dataset = dataset;
@@ -445,6 +503,7 @@ public class IQCValidator extends JFrame
                         if (!seen.contains(id)) {
                             boolean set = Integer.parseInt(toks[1]) == 1;
                             saves.put(toks[0], set);
+                            savedSamples.add(id);
                             if (toks.length > 3) {
                                 //curators.put(toks[0], toks[3]);
                                 setAnnotator (root, id, toks[3]);
@@ -498,6 +557,7 @@ public class IQCValidator extends JFrame
                                 +" saved results retrieved!");
                     lock.lock();
                     try {
+                        savedLoader = this;
                         loadSavedResults ();
                         sampleTree.repaint();                        
                     }
@@ -526,6 +586,20 @@ public class IQCValidator extends JFrame
                 Object obj = node.getUserObject();
                 if (obj != null && obj instanceof SampleData) {
                     SampleData data = (SampleData)obj;
+                    if (data.isFitted()) {
+                        loadSavedResults (data);
+                    }
+                    else if (savedSamples.contains(data.getName())) {
+                        // the rest is done once it's fitted 
+                        prefetch (data);
+                    }
+                }
+            }
+        } // loadSavedResults()
+
+        // caller must hold the lock
+        void loadSavedResults (SampleData data) {
+            if (loaded.add(data)) {
                     for (Estimator.Result r : data.getResults()) {
                         Boolean b = saves.get(r.getId());
                         if (b != null) {
@@ -559,9 +633,8 @@ public class IQCValidator extends JFrame
                             }
                         }
                     }
-                }
             }
-        } // loadSavedResults()
+        }
     }
 
     InputStream openStream (String path)  throws Exception {
@@ -578,6 +651,119 @@ public class IQCValidator extends JFrame
         return conn;
     }
 
+    /*
+     * Seed the fit cache with the results the server has for dataset
+     * (see IQCFitServlet) so that its samples aren't fitted here. The
+     * results are only used if they're of the same file as the local
+     * copy of dataset (sha1), and each one goes under the cache key
+     * the server computed for its sample, so it's only used for a
+     * sample with the same measures. Samples that the server hasn't
+     * fitted, or that are already cached, are left alone.
+     */
+    void loadServerFits (String dataset, String sha1,
+                         DefaultMutableTreeNode root) {
+        ResultCache cache = estimator.getCache();
+        if (cache == null || sha1 == null) {
+            return;
+        }
+
+        // samples that would be fitted here
+        Set<String> keys = new HashSet<String>();
+        for (Enumeration en = root.children(); en.hasMoreElements(); ) {
+            Object node = en.nextElement();
+            if (node instanceof SampleTreeNode) {
+                Sample sample = ((SampleData)((SampleTreeNode)node)
+                                 .getUserObject()).sample;
+                String key = estimator.getCacheKey
+                    (sample.getMedianMeasures(), 0);
+                if (!cache.contains(key)) {
+                    keys.add(key);
+                }
+            }
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        try {
+            URLConnection conn = getURLConnection
+                ("/iqc-web2/fits/"+dataset.replaceAll(" ", "%20"));
+            if (conn instanceof HttpURLConnection) {
+                HttpURLConnection http = (HttpURLConnection)conn;
+                if (http.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    logger.info(dataset+": no fit results on the server ("
+                                +http.getResponseCode()+")");
+                    http.disconnect();
+                    return;
+                }
+            }
+            if (!("\""+sha1+"\"").equals(conn.getHeaderField("ETag"))) {
+                logger.info(dataset+": fit results on the server are of "
+                            +"another version of the dataset");
+                conn.getInputStream().close();
+                return;
+            }
+
+            // index, sample, key, rank, measures, config, slope,
+            //  slope stderr, intercept, intercept stderr, MSE, r^2,
+            //  score, t1/2
+            Map<String, List<String[]>> fits =
+                new HashMap<String, List<String[]>>();
+            BufferedReader br = new BufferedReader
+                (new InputStreamReader (conn.getInputStream()));
+            try {
+                for (String line; (line = br.readLine()) != null; ) {
+                    String[] toks = line.split("\t");
+                    if (toks.length == 14 && keys.contains(toks[2])) {
+                        List<String[]> rows = fits.get(toks[2]);
+                        if (rows == null) {
+                            fits.put(toks[2],
+                                     rows = new ArrayList<String[]>());
+                        }
+                        else if (!rows.get(0)[0].equals(toks[0])) {
+                            continue; // another sample with same measures
+                        }
+                        rows.add(toks);
+                    }
+                }
+            }
+            finally {
+                br.close();
+            }
+
+            for (Map.Entry<String, List<String[]>> me : fits.entrySet()) {
+                List<String[]> rows = me.getValue();
+                int[] rank = new int[rows.size()];
+                long[] config = new long[rank.length];
+                double[][] values = new double[rank.length][];
+                double[] score = new double[rank.length];
+                for (int i = 0; i < rank.length; ++i) {
+                    String[] toks = rows.get(i);
+                    rank[i] = Integer.parseInt(toks[3]);
+                    config[i] = Long.parseLong(toks[5]);
+                    // same order as the metrics of the model
+                    values[i] = new double[]{
+                        Double.parseDouble(toks[6]), // slope
+                        Double.parseDouble(toks[8]), // intercept
+                        Double.parseDouble(toks[10]), // MSE
+                        Double.parseDouble(toks[11]), // r^2
+                        Double.parseDouble(toks[7]), // slope stderr
+                        Double.parseDouble(toks[9]) // intercept stderr
+                    };
+                    score[i] = Double.parseDouble(toks[12]);
+                }
+                cache.put(me.getKey(), Integer.parseInt(rows.get(0)[4]),
+                          rank, config, values, score);
+            }
+            logger.info(dataset+": "+fits.size()
+                        +" sample(s) fitted by the server");
+        }
+        catch (Exception ex) {
+            logger.log(Level.WARNING, "Can't fetch fit results of "
+                       +dataset+"; fitting locally", ex);
+        }
+    }
+
     void dumpAnnotations () throws IOException {
         TreeMap<String, Estimator.Result> sorted = 
             new TreeMap<String, Estimator.Result>
@@ -855,50 +1041,98 @@ public class IQCValidator extends JFrame
                     items.add(m);
                 }
                 
-                for (String name; (name = br.readLine()) != null; ) {
-                    String[] tokens = name.split("\t");
-                    int count = 0;
-                    if (tokens.length == 2) {
-                        name = tokens[0];
-                        try {
-                            count = Integer.parseInt(tokens[1]);
-                        }
-                        catch (NumberFormatException ex) {
-                        }
+                // fetch and parse the datasets concurrently but add them
+                //  to the menu in the order they're listed
+                List<String> lines = new ArrayList<String>();
+                List<Future<JMenuItem>> loads = 
+                    new ArrayList<Future<JMenuItem>>();
+                ExecutorService pool = Executors.newFixedThreadPool
+                    (DOWNLOAD_THREADS);
+                try {
+                    for (String line; (line = br.readLine()) != null; ) {
+                        String[] tokens = line.split("\t");
+                        final String full = 
+                            tokens.length == 2 ? tokens[0] : line;
+                        lines.add(line);
+                        loads.add(pool.submit(new Callable<JMenuItem> () {
+                                public JMenuItem call () throws Exception {
+                                    int pos = full.indexOf('/');
+                                    return createMenuItem 
+                                        (full, pos > 0 
+                                         ? full.substring(pos+1) : full);
+                                }
+                            }));
                     }
+                }
+                catch (IOException ex) {
+                    pool.shutdownNow();
+                    throw ex;
+                }
+                finally {
+                    pool.shutdown();
+                    br.close();
+                }
 
-                    String full = name;
-                    int pos = name.indexOf('/');
-                    JMenu parent = null;
-                    if (pos > 0) {
-                        String sub = name.substring(0, pos);
-                        parent = menu.get(sub);
-                        if (parent == null) {
-                            menu.put(sub, parent = new JMenu (sub));
-                            items.add(parent);
+                try {
+                    for (int i = 0; i < lines.size(); ++i) {
+                        String name = lines.get(i);
+                        String[] tokens = name.split("\t");
+                        int count = 0;
+                        if (tokens.length == 2) {
+                            name = tokens[0];
+                            try {
+                                count = Integer.parseInt(tokens[1]);
+                            }
+                            catch (NumberFormatException ex) {
+                            }
                         }
-                        
-                        name = name.substring(pos+1);
-                    }
 
-                    JMenuItem item = createMenuItem (full, name);
-                    if (item != null) {
-                        item.putClientProperty("fullname", full);
-                        if (count == 0)
-                            item.setIcon(STAR_EMPTY);
-                        else if (count < 10)
-                            item.setIcon(STAR_HALF);
-                        else
-                            item.setIcon(STAR_FULL);
-
-                        if (parent != null) {
-                            parent.add(item);
+                        String full = name;
+                        int pos = name.indexOf('/');
+                        JMenu parent = null;
+                        if (pos > 0) {
+                            String sub = name.substring(0, pos);
+                            parent = menu.get(sub);
+                            if (parent == null) {
+                                menu.put(sub, parent = new JMenu (sub));
+                                items.add(parent);
+                            }
+                            
+                            name = name.substring(pos+1);
                         }
-                        else {
-                            items.add(item);
+
+                        JMenuItem item;
+                        try {
+                            item = loads.get(i).get();
+                        }
+                        catch (ExecutionException ex) {
+                            logger.log(Level.WARNING, "Can't load dataset "
+                                       +full+"; skipping it", ex.getCause());
+                            continue;
+                        }
+
+                        if (item != null) {
+                            item.putClientProperty("fullname", full);
+                            if (count == 0)
+                                item.setIcon(STAR_EMPTY);
+                            else if (count < 10)
+                                item.setIcon(STAR_HALF);
+                            else
+                                item.setIcon(STAR_FULL);
+
+                            if (parent != null) {
+                                parent.add(item);
+                            }
+                            else {
+                                items.add(item);
+                            }
                         }
                     }
                 }
+                finally {
+                    // cancels whatever is left if we bail out early
+                    pool.shutdownNow();
+                }
             }
             catch (Exception ex) {
                 return ex;
@@ -908,8 +1142,70 @@ public class IQCValidator extends JFrame
 
         JMenuItem createMenuItem (String full, String name) throws Exception {
             logger.info("## loading "+name+"...");
-            InputStream is = openStream
-                ("/iqc-web2/datasets/"+full.replaceAll(" ", "%20"));
+            String path = "/iqc-web2/datasets/"+full.replaceAll(" ", "%20");
+            InputStream is;
+            File bin = null; // parsed samples of the mirrored file
+            String sha1 = null; // of the mirrored file
+            if (mirror != null) {
+                File file = mirror.fetch(full, getURLConnection (path));
+                bin = mirror.getBinary(file);
+                sha1 = mirror.getDigest(file);
+                is = new FileInputStream (file);
+            }
+            else {
+                is = openStream (path);
+            }
+            try {
+                return createMenuItem (full, name, is, bin, sha1);
+            }
+            finally {
+                is.close();
+            }
+        }
+
+        /*
+         * Samples of a dataset being loaded. Without a binary file (bin)
+         * they're parsed from is; otherwise they're parsed only the
+         * first time and written to bin so that later opens just map
+         * them.
+         */
+        tripod.iqc.core.Reader getSamples (File bin, InputStream is,
+                                           boolean csv) throws IOException {
+            if (bin != null && bin.isFile()) {
+                try {
+                    return new BinReader (bin);
+                }
+                catch (IOException ex) {
+                    logger.log(Level.WARNING, "Bogus binary dataset "+bin
+                               +"; parsing it again", ex);
+                    bin.delete();
+                }
+            }
+
+            tripod.iqc.core.Reader parser = csv
+                ? new CsvReader (is) : new TxtReader (is);
+            if (bin == null) {
+                return parser;
+            }
+
+            BinWriter writer = new BinWriter ();
+            writer.addAll(parser);
+            File tmp = File.createTempFile
+                ("dataset", ".tmp", bin.getParentFile());
+            try {
+                writer.write(tmp);
+                if (!tmp.renameTo(bin)) {
+                    throw new IOException ("Can't write "+bin);
+                }
+            }
+            finally {
+                tmp.delete();
+            }
+            return new BinReader (bin);
+        }
+
+        JMenuItem createMenuItem (String full, String name, InputStream is,
+                                  File bin, String sha1) throws Exception {
 
             boolean correction = 
                 name.indexOf("SP118414_20130816_CYP34A_Stab_Data_Final.txt")
@@ -923,8 +1219,20 @@ public class IQCValidator extends JFrame
                 if (ext.equals(".txt") || ext.equals(".TXT")) {
                     item = new JMenuItem (name);
                     item.addActionListener(loadAction);
-                    DefaultMutableTreeNode root = loadSampleTreeTxt 
-                        (correction, is);
+                    tripod.iqc.core.Reader reader =
+                        getSamples (bin, is, false);
+                    DefaultMutableTreeNode root;
+                    try {
+                        root = loadSampleTreeTxt (correction, reader);
+                    }
+                    finally {
+                        if (reader instanceof Closeable) {
+                            ((Closeable)reader).close();
+                        }
+                    }
+                    if (!correction) { // the server fits what's uploaded
+                        loadServerFits (full, sha1, root);
+                    }
                     logger.info(name+": "+root.getChildCount()+" sample(s) read!");                 
                     //new LoadSavedResults (name, root).execute();
                     item.putClientProperty("samples", root);
@@ -932,7 +1240,18 @@ public class IQCValidator extends JFrame
                 else if (ext.equals(".csv") || ext.equals(".CSV")) {
                     item = new JMenuItem (name);
                     item.addActionListener(loadAction);
-                    DefaultMutableTreeNode root = loadSampleTreeCsv (is);
+                    tripod.iqc.core.Reader reader =
+                        getSamples (bin, is, true);
+                    DefaultMutableTreeNode root;
+                    try {
+                        root = loadSampleTreeCsv (reader);
+                    }
+                    finally {
+                        if (reader instanceof Closeable) {
+                            ((Closeable)reader).close();
+                        }
+                    }
+                    loadServerFits (full, sha1, root);
                     logger.info("########### "+name+": "+root.getChildCount()
                                 +" sample(s) read #############");
                     //new LoadSavedResults (name, root).execute();
@@ -1084,7 +1403,6 @@ public class IQCValidator extends JFrame
     }
 
     class SampleTreeNode extends DefaultMutableTreeNode {
-        Estimator estimator = new LeastSquaresEstimator ();
         String annotator;
 
         // clone
@@ -1092,11 +1410,27 @@ public class IQCValidator extends JFrame
             super (n.getUserObject());
         }
         
-        SampleTreeNode (Sample sample) {
-            // calculate fit for parent sample
-            SampleData data = new SampleData 
-                (sample, estimator.estimate(sample));
-            setUserObject (data);
+        SampleTreeNode (final Sample sample) {
+            // the parent sample is fitted when first selected, rendered,
+            //  or prefetched
+            setUserObject (new SampleData (sample) {
+                    @Override
+                    protected List<Estimator.Result> fit () {
+                        try {
+                            return estimator.estimate(sample);
+                        }
+                        catch (Exception ex) {
+                            logger.warning(sample.getName()+": "
+                                           +ex.getMessage());
+                            return new ArrayList<Estimator.Result>();
+                        }
+                    }
+
+                    @Override
+                    protected void fitted () {
+                        IQCValidator.this.fitted (SampleTreeNode.this, this);
+                    }
+                });
 
             int[] repls = sample.getReplicates();
             if (repls.length > 2) {
@@ -1384,11 +1718,17 @@ public class IQCValidator extends JFrame
                     Icon icon = STATUS_GRAY;
                     lock.lock();
                     try {
-                        for (Estimator.Result r : data.getResults()) {
-                            Boolean b = savedResults.get(r);
-                            if (null != b && b) {
-                                icon = STATUS_GREEN;
-                                break;
+                        if (!data.isFitted()) {
+                            // it's visible, so fit it soon
+                            prefetch (data);
+                        }
+                        else {
+                            for (Estimator.Result r : data.getResults()) {
+                                Boolean b = savedResults.get(r);
+                                if (null != b && b) {
+                                    icon = STATUS_GREEN;
+                                    break;
+                                }
                             }
                         }
                         setLeafIcon (icon);
@@ -1434,6 +1774,29 @@ public class IQCValidator extends JFrame
     private Map<String, Molecule> molDb = 
         new ConcurrentHashMap<String, Molecule>();
 
+    // shared by all sample trees so that fits are looked up in (and
+    //  remembered by) the same cache
+    private final LeastSquaresEstimator estimator = createEstimator ();
+    // fits sample tree nodes in the background ahead of the curator
+    private final ExecutorService prefetcher = Executors.newFixedThreadPool
+        (Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+         new ThreadFactory () {
+             public Thread newThread (Runnable r) {
+                 Thread t = new Thread (r, "Prefetch");
+                 t.setDaemon(true);
+                 t.setPriority(Thread.MIN_PRIORITY);
+                 return t;
+             }
+         });
+    // local copies of the server datasets; null if it can't be created
+    private final DatasetMirror mirror = createMirror ();
+    // number of datasets downloaded at the same time
+    static final int DOWNLOAD_THREADS = 4;
+    // number of rows around the selection to prefetch
+    static final int PREFETCH_ROWS = 20;
+    // saved results of the current dataset
+    private LoadSavedResults savedLoader;
+
     private ActionListener loadAction = new ActionListener () {
             public void actionPerformed (ActionEvent e) {
                 JMenuItem item = (JMenuItem)e.getSource();
@@ -1464,6 +1827,72 @@ public class IQCValidator extends JFrame
         }
     }
 
+    void prefetch (final SampleData data) {
+        if (data.schedule()) {
+            prefetcher.submit(new Runnable () {
+                    public void run () {
+                        data.getResults();
+                        SwingUtilities.invokeLater(new Runnable () {
+                                public void run () {
+                                    sampleTree.repaint();
+                                }
+                            });
+                    }
+                });
+        }
+    }
+
+    // bring a sample that was just fitted up to date with the clearance
+    //  settings and the saved results of its dataset
+    void fitted (SampleTreeNode node, SampleData data) {
+        try {
+            updateCLint (data.getResults());
+        }
+        catch (NumberFormatException ex) {
+            // bogus concentration; reported when it's entered
+        }
+
+        lock.lock();
+        try {
+            if (savedLoader != null && node.getRoot() == savedLoader.root) {
+                savedLoader.loadSavedResults(data);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    static DatasetMirror createMirror () {
+        try {
+            return new DatasetMirror
+                (new File (System.getProperty("user.home"), 
+                           ".iqc"+File.separator+"datasets"));
+        }
+        catch (Exception ex) {
+            logger.log(Level.WARNING, "Can't create dataset mirror; "
+                       +"datasets will be downloaded every time", ex);
+        }
+        return null;
+    }
+
+    static LeastSquaresEstimator createEstimator () {
+        LeastSquaresEstimator estimator = new LeastSquaresEstimator ();
+        ResultCache cache;
+        try {
+            cache = new ResultCache
+                (new File (System.getProperty("user.home"), 
+                           ".iqc"+File.separator+"fits"), 10000);
+        }
+        catch (Exception ex) {
+            logger.log(Level.WARNING, "Can't create fit cache on disk; "
+                       +"caching in memory only", ex);
+            cache = new ResultCache (10000);
+        }
+        estimator.setCache(cache);
+        return estimator;
+    }
+
     protected void initUI () {
         chooser = new JFileChooser (".");
 
@@ -1779,6 +2208,9 @@ public class IQCValidator extends JFrame
         item = importMenu.add(new JMenuItem ("Csv"));
         item.setToolTipText("Import Csv data file");
         item.addActionListener(this);
+        item = importMenu.add(new JMenuItem ("Zip"));
+        item.setToolTipText("Import zip file of xlsx workbooks");
+        item.addActionListener(this);
 
         item = menu.add(new JMenuItem ("Export"));
         item.setToolTipText("Export data file");
@@ -1885,7 +2317,10 @@ public class IQCValidator extends JFrame
                 Object obj = node.getUserObject();
                 if (obj != null && obj instanceof SampleData) {
                     SampleData data = (SampleData)obj;
-                    updateCLint (unit, conc, data.getResults());
+                    // the others are updated once they're fitted
+                    if (data.isFitted()) {
+                        updateCLint (unit, conc, data.getResults());
+                    }
                 }
             }
             ResultTableModel model = (ResultTableModel)resultTab.getModel();
@@ -1952,6 +2387,9 @@ public class IQCValidator extends JFrame
         else if (cmd.equalsIgnoreCase("csv")) {
             loadCsv ();
         }
+        else if (cmd.equalsIgnoreCase("zip")) {
+            loadZip ();
+        }
         else if (cmd.equalsIgnoreCase("export")) {
             export ();
         }
@@ -1998,6 +2436,16 @@ public class IQCValidator extends JFrame
         logger.info("Selection "+node.getUserObject());
         sampleTree.expandPath(path);
 
+        // the curator is likely to look at the neighbors next
+        int row = sampleTree.getRowForPath(path);
+        for (int i = Math.max(0, row - PREFETCH_ROWS); 
+             i <= row + PREFETCH_ROWS && i < sampleTree.getRowCount(); ++i) {
+            Object n = sampleTree.getPathForRow(i).getLastPathComponent();
+            if (n instanceof SampleTreeNode) {
+                prefetch (((SampleTreeNode)n).getData());
+            }
+        }
+
         SampleData data = (SampleData)node.getData();
         if (data != null) {            
             rtm.setResults(data.getResults());
@@ -2108,6 +2556,20 @@ public class IQCValidator extends JFrame
         }
     }
     
+    protected void loadZip () {
+        if (confirmedSave ()) {
+            FileNameExtensionFilter filter = new FileNameExtensionFilter
+                ("ZIP file", "zip");
+            chooser.setFileFilter(filter);
+            chooser.setDialogTitle("Load zip data file...");
+            int ans = chooser.showOpenDialog(this);
+            if (JFileChooser.APPROVE_OPTION == ans) {
+                File file = chooser.getSelectedFile();
+                new LoadFileWorker (Format.Zip, file).execute();
+            }
+        }
+    }
+    
     protected void upload (String enz) {
         FileNameExtensionFilter filter = new FileNameExtensionFilter
             ("Text data file", "txt", "text", "csv");
@@ -2187,11 +2649,25 @@ public class IQCValidator extends JFrame
             lock.lock();
             try {
                 boolean annotated = false;
-                for (Estimator.Result r : s.getResults()) {
-                    Boolean b = savedResults.get(r);
-                    if (null != b && b) {
-                        annotated = true;
-                        break;
+                if (s.isFitted()) {
+                    for (Estimator.Result r : s.getResults()) {
+                        Boolean b = savedResults.get(r);
+                        if (null != b && b) {
+                            annotated = true;
+                            break;
+                        }
+                    }
+                }
+                else if (savedLoader != null 
+                         && node.getRoot() == savedLoader.root) {
+                    // no need to fit it just to look up its saves
+                    String prefix = s.getName()+"[";
+                    for (Map.Entry<String, Boolean> me 
+                             : savedLoader.saves.entrySet()) {
+                        if (me.getValue() && me.getKey().startsWith(prefix)) {
+                            annotated = true;
+                            break;
+                        }
                     }
                 }
                 
@@ -2229,12 +2705,17 @@ public class IQCValidator extends JFrame
         }
     }
 
-    Set<String> samples = new TreeSet<String>();
+    // datasets are loaded concurrently (see LoadDatasets)
+    Set<String> samples = new ConcurrentSkipListSet<String>();
     protected DefaultMutableTreeNode loadSampleTreeTxt
         (boolean correction, InputStream is) 
         throws IOException {
+        return loadSampleTreeTxt (correction, new TxtReader (is));
+    }
 
-        TxtReader reader = new TxtReader (is);
+    protected DefaultMutableTreeNode loadSampleTreeTxt
+        (boolean correction, tripod.iqc.core.Reader reader)
+        throws IOException {
 
         DefaultMutableTreeNode root = new DefaultMutableTreeNode ();
         for (Sample s; (s = reader.read()) != null; ) {
@@ -2265,8 +2746,11 @@ public class IQCValidator extends JFrame
     protected DefaultMutableTreeNode loadSampleTreeCsv
         (InputStream is) throws IOException {
 
-        CsvReader reader = new CsvReader (is);
+        return loadSampleTreeCsv (new CsvReader (is));
+    }
 
+    protected DefaultMutableTreeNode loadSampleTreeCsv
+        (tripod.iqc.core.Reader reader) throws IOException {
         DefaultMutableTreeNode root = new DefaultMutableTreeNode ();
         for (Sample s; (s = reader.read()) != null; ) {
             if (s.size() > 2) {
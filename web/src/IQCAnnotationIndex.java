@@ -0,0 +1,161 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+import java.sql.*;
+
+import tripod.iqc.service.PersistenceManager;
+import static tripod.iqc.service.PersistenceManager.Annotation;
+
+/**
+ * In-memory index of the latest annotation of each sample of each
+ * dataset, i.e., what IQCAnnotationServlet returns for a dataset. The
+ * index is loaded once from the database and then kept current by
+ * reloading a dataset whenever its annotations are written. Each
+ * dataset's annotations are replaced as a whole, so readers never see
+ * a partially updated dataset. Datasets and samples are compared
+ * ignoring case, as the database does (MySQL's default collation), so
+ * lookups return the same annotations whether or not they're served
+ * from the index.
+ */
+public class IQCAnnotationIndex {
+    static final Logger logger =
+        Logger.getLogger(IQCAnnotationIndex.class.getName());
+
+    // newest first
+    static final Comparator<Annotation> NEWEST = new Comparator<Annotation>() {
+            public int compare (Annotation a1, Annotation a2) {
+                if (a1.getId() > a2.getId()) return -1;
+                if (a1.getId() < a2.getId()) return 1;
+                return 0;
+            }
+        };
+
+    // dataset -> latest annotations, newest first
+    final ConcurrentNavigableMap<String, List<Annotation>> datasets =
+        new ConcurrentSkipListMap<String, List<Annotation>>
+        (String.CASE_INSENSITIVE_ORDER);
+    // anno_id -> dataset of the annotations in the index
+    final ConcurrentMap<Long, String> ids =
+        new ConcurrentHashMap<Long, String>();
+
+    public IQCAnnotationIndex () {
+    }
+
+    /**
+     * Load the latest annotations of all datasets
+     */
+    public synchronized void load (PersistenceManager pm)
+        throws SQLException {
+        final Map<String, Map<String, Annotation>> latest =
+            new TreeMap<String, Map<String, Annotation>>
+            (String.CASE_INSENSITIVE_ORDER);
+        final int[] rows = new int[1];
+        pm.getAnnotations(-1l, 0, new PersistenceManager.Visitor<Annotation>() {
+                public void visit (Annotation a) {
+                    Map<String, Annotation> samples =
+                        latest.get(a.getDataset());
+                    if (samples == null) {
+                        latest.put(a.getDataset(), samples =
+                                   new TreeMap<String, Annotation>
+                                   (String.CASE_INSENSITIVE_ORDER));
+                    }
+                    add (samples, a);
+                    ++rows[0];
+                }
+            });
+
+        datasets.clear();
+        ids.clear();
+        for (Map.Entry<String, Map<String, Annotation>> me
+                 : latest.entrySet()) {
+            put (me.getKey(), me.getValue().values());
+        }
+        logger.info("## annotation index: "+rows[0]+" annotation(s), "
+                    +ids.size()+" latest in "+datasets.size()
+                    +" dataset(s)");
+    }
+
+    /**
+     * Reload the latest annotations of a dataset after they've been
+     * written
+     */
+    public synchronized void reload (PersistenceManager pm, String dataset)
+        throws SQLException {
+        final Map<String, Annotation> samples =
+            new TreeMap<String, Annotation>(String.CASE_INSENSITIVE_ORDER);
+        pm.getAnnotations(dataset, new PersistenceManager
+                          .Visitor<Annotation>() {
+                public void visit (Annotation a) {
+                    add (samples, a);
+                }
+            });
+
+        List<Annotation> old = datasets.get(dataset);
+        if (old != null) {
+            for (Annotation a : old) {
+                ids.remove(a.getId());
+            }
+        }
+        if (samples.isEmpty()) {
+            datasets.remove(dataset);
+        }
+        else {
+            put (dataset, samples.values());
+        }
+    }
+
+    // keep the newest annotation of each sample
+    static void add (Map<String, Annotation> samples, Annotation a) {
+        String id = sampleId (a.getSample());
+        Annotation b = samples.get(id);
+        if (b == null || b.getId() < a.getId()) {
+            samples.put(id, a);
+        }
+    }
+
+    void put (String dataset, Collection<Annotation> annotations) {
+        List<Annotation> list = new ArrayList<Annotation>(annotations);
+        Collections.sort(list, NEWEST);
+        for (Annotation a : list) {
+            ids.put(a.getId(), dataset);
+        }
+        datasets.put(dataset, Collections.unmodifiableList(list));
+    }
+
+    // sample without the configuration suffix
+    static String sampleId (String sample) {
+        int pos = sample.indexOf('[');
+        return pos > 0 ? sample.substring(0, pos) : sample;
+    }
+
+    /**
+     * Return the dataset of the given annotation if it's the latest
+     * annotation of its sample; null otherwise.
+     */
+    public String getDataset (long id) {
+        return ids.get(id);
+    }
+
+    /**
+     * Latest annotations of dataset, newest first
+     */
+    public List<Annotation> getLatest (String dataset) {
+        List<Annotation> latest = datasets.get(dataset);
+        return latest != null ? latest : Collections.<Annotation>emptyList();
+    }
+
+    /**
+     * Latest annotations of the datasets starting with prefix, newest
+     * first
+     */
+    public List<Annotation> getLatestByPrefix (String prefix) {
+        List<Annotation> latest = new ArrayList<Annotation>();
+        for (List<Annotation> l : datasets.subMap
+                 (prefix, true, prefix+Character.MAX_VALUE, false).values()) {
+            latest.addAll(l);
+        }
+        Collections.sort(latest, NEWEST);
+        return latest;
+    }
+}
@@ -10,6 +10,9 @@ import javax.servlet.*;
 import javax.servlet.http.*;
 import java.sql.*;
 
+import tripod.iqc.service.PersistenceManager;
+import static tripod.iqc.service.PersistenceManager.Annotation;
+
 
 public class IQCAnnotationServlet extends HttpServlet {
     static final Logger logger = 
@@ -26,12 +29,12 @@ public class IQCAnnotationServlet extends HttpServlet {
     }
 
     String iqcJdbc;
+    PersistenceManager pm;
+    // latest annotations; null if it can't be trusted, in which case
+    //  they're read from the database
+    volatile IQCAnnotationIndex index;
     ServletContext context;
 
-    Connection getConnection () throws SQLException {
-        return DriverManager.getConnection(iqcJdbc);
-    }
-
     @Override
     public void init (ServletConfig config) throws ServletException {
         context = config.getServletContext();
@@ -43,6 +46,9 @@ public class IQCAnnotationServlet extends HttpServlet {
             }
 
             logger.info("## jdbc-iqc: "+iqcJdbc);
+            pm = IQCConnectionPool.getPersistenceManager(context);
+
+            loadIndex ();
         }
         catch (Exception ex) {
             logger.log(Level.SEVERE, "Can't initialize servlet!", ex);
@@ -50,6 +56,33 @@ public class IQCAnnotationServlet extends HttpServlet {
         }
     }
 
+    void loadIndex () {
+        try {
+            IQCAnnotationIndex idx = new IQCAnnotationIndex ();
+            idx.load(pm);
+            index = idx;
+        }
+        catch (SQLException ex) {
+            logger.log(Level.WARNING, "Can't load annotation index; "
+                       +"annotations will be read from the database", ex);
+        }
+    }
+
+    // write-through of the annotations of a dataset to the index
+    void reindex (String dataset) {
+        IQCAnnotationIndex idx = index;
+        if (idx != null) {
+            try {
+                idx.reload(pm, dataset);
+            }
+            catch (SQLException ex) {
+                logger.log(Level.WARNING, "Can't update annotation index "
+                           +"for "+dataset+"; disabling it", ex);
+                index = null;
+            }
+        }
+    }
+
     protected String[] getArgs (HttpServletRequest req) {
         String info = req.getPathInfo();
         logger.info(req.getContextPath()+": "+info);
@@ -68,6 +101,7 @@ public class IQCAnnotationServlet extends HttpServlet {
 
     @Override
     public void destroy () {
+        // the pool and pm are shared; see IQCContextListener
         logger.info("shutting down "+context.getServletContextName()+"....");
     }
 
@@ -89,50 +123,43 @@ public class IQCAnnotationServlet extends HttpServlet {
             addr = req.getRemoteAddr();
         logger.info(addr+": dataset="+dataset);
 
-        Connection con = null;
         try {
-            con = getConnection ();
-            PreparedStatement pstm = con.prepareStatement
-                ("insert into iqc_validator_annotation"
-                 +"(dataset,sample,save,comments,curator) "
-                 +"values(?,?,?,?,?)");
             BufferedReader br = new BufferedReader
                 (new InputStreamReader (req.getInputStream()));
-            int lines = 0, rows = 0;
+            List<Annotation> annotations = new ArrayList<Annotation>();
+            // line number of each annotation
+            List<Integer> lineno = new ArrayList<Integer>();
+            int lines = 0;
             for (String line; (line = br.readLine()) != null; ++lines) {
                 String[] fields = line.split("[\\|\t]");
                 logger.info(addr+":"+lines+":"+fields.length+":"+line);
                 if (fields.length == 3) {
-                    try {
-                        pstm.setString(1, dataset); // dataset
-                        pstm.setString(2, fields[0]); // sample
-                        boolean save = Boolean.parseBoolean(fields[1]);
-                        pstm.setInt(3, save ? 1 : 0);
-                        pstm.setString(4, addr);
-                        pstm.setString(5, fields[2]); // curator
-                        if (pstm.executeUpdate() > 0) {
-                            ++rows;
-                        }
-                    }
-                    catch (Exception ex) {
-                        logger.log(Level.SEVERE, 
-                                   lines+": Can't process input: "+line, ex);
-                    }
+                    annotations.add(new Annotation 
+                                    (dataset, fields[0], // sample
+                                     Boolean.parseBoolean(fields[1]), 
+                                     addr, fields[2])); // curator
+                    lineno.add(lines);
                 }
             }
             br.close();
-            logger.info(addr+": "+rows+" row(s) inserted!");
+
+            // all lines are inserted in one transaction
+            Map<Integer, String> errors = new TreeMap<Integer, String>();
+            int rows = pm.insertAnnotations(annotations, errors);
+            IQCDatasetServlet.invalidateListing();
+            reindex (dataset);
+
+            logger.info(addr+": "+rows+" row(s) inserted; "
+                        +errors.size()+" error(s)!");
+            // clients only read the first line
             pw.println(dataset+" "+rows);
+            for (Map.Entry<Integer, String> me : errors.entrySet()) {
+                pw.println(lineno.get(me.getKey())+": "+me.getValue());
+            }
         }
         catch (SQLException ex) {
             ex.printStackTrace(pw);
         }
-        finally {
-            if (con != null) {
-                try { con.close(); }
-                catch (Exception ex) { ex.printStackTrace(); }
-            }
-        }
     }
 
     @Override
@@ -151,120 +178,141 @@ public class IQCAnnotationServlet extends HttpServlet {
         if (addr == null)
             addr = req.getRemoteAddr();
 
-        Connection con = null;
         try {
-            con = getConnection ();
-            PreparedStatement pstm = con.prepareStatement
-                ("delete from iqc_validator_annotation where anno_id = ?");
             BufferedReader br = new BufferedReader
                 (new InputStreamReader (req.getInputStream()));
-            int lines = 0, rows = 0;
+            List<Long> ids = new ArrayList<Long>();
+            int lines = 0;
             for (String line; (line = br.readLine()) != null; ++lines) {
                 logger.info(addr+":"+lines+":"+line);
                 try {
-                    long id = Long.parseLong(line);
-                    pstm.setLong(1, id);
-                    if (pstm.executeUpdate() > 0) {
-                        pw.println(line+": OK");
-                        ++rows;
+                    ids.add(Long.parseLong(line));
+                }
+                catch (NumberFormatException ex) {
+                    pw.println(line+": bogus annotation id");
+                }
+            }
+            br.close();
+
+            long[] anno = new long[ids.size()];
+            for (int i = 0; i < anno.length; ++i) {
+                anno[i] = ids.get(i);
+            }
+            int[] counts = pm.deleteAnnotations(anno);
+
+            int rows = 0;
+            // datasets whose latest annotations were deleted
+            Set<String> datasets = new HashSet<String>();
+            IQCAnnotationIndex idx = index;
+            for (int i = 0; i < anno.length; ++i) {
+                if (counts[i] > 0) {
+                    pw.println(anno[i]+": OK");
+                    ++rows;
+                    String ds = idx != null ? idx.getDataset(anno[i]) : null;
+                    if (ds != null) {
+                        datasets.add(ds);
                     }
                 }
-                catch (SQLException ex) {
-                    pw.println(line+": "+ex.getMessage());
+                else if (counts[i] == Statement.EXECUTE_FAILED) {
+                    pw.println(anno[i]+": can't delete");
                 }
             }
+            IQCDatasetServlet.invalidateListing();
+            for (String ds : datasets) {
+                reindex (ds);
+            }
             pw.println(rows+" row(s) deleted!");
         }
         catch (SQLException ex) {
             ex.printStackTrace(pw);
         }
-        finally {
-            if (con != null) {
-                try { con.close(); }
-                catch (Exception ex) { ex.printStackTrace(); }
-            }
-        }
     }
 
+    /*
+     * Annotations are read with the following optional parameters
+     *   after  only return annotations past this anno_id (the last
+     *          anno_id of the previous page)
+     *   limit  maximum number of annotations to return
+     *
+     * For a dataset (or a dataset prefix ending with *) only the latest
+     * annotation of each sample is returned, newest first, so pages go
+     * backward in anno_id. Without a dataset every annotation is
+     * returned ordered by dataset, sample, and time; when paging, it's
+     * ordered by anno_id instead. The latest annotations are served
+     * from the annotation index whenever it's available.
+     */
     @Override
     public void doGet (HttpServletRequest req, HttpServletResponse res)
         throws ServletException, IOException {
-        PrintWriter pw = res.getWriter();
-
-        //String[] args = getArgs (req);
         String info = req.getPathInfo();
-        Connection con = null;
+        long after;
+        int limit;
         try {
-            con = getConnection ();
-            if (info != null && info.length() > 0) {
-                PreparedStatement pstm;
-                int pos = info.indexOf('*');
-                if (pos > 0) {
-                    pstm = con.prepareStatement
-                        ("select * from iqc_validator_annotation "
-                         +"where dataset like '"+info.substring(1, pos)+"%' "
-                         +"order by anno_id desc, sample");
-                }
-                else {
-                    pstm = con.prepareStatement
-                        ("select * from iqc_validator_annotation "
-                         +"where dataset = ? "
-                         +"order by anno_id desc, sample");
-                    pstm.setString(1, info.substring(1));
-                }
-                
-                //pstm.setString(2, "148.168.40.121");
-                ResultSet rset = pstm.executeQuery();
-                Map<String, Set<String>> datasets = new HashMap<>();
-                while (rset.next()) {
-                    String c = rset.getString("curator");
-                    String s = rset.getString("sample");
-                    String d = rset.getString("dataset");
+            String param = req.getParameter("after");
+            after = param != null ? Long.parseLong(param) : -1l;
+            param = req.getParameter("limit");
+            limit = param != null ? Integer.parseInt(param) : 0;
+        }
+        catch (NumberFormatException ex) {
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST, 
+                          "Bogus after or limit parameter");
+            return;
+        }
 
-                    Set<String> samples = datasets.get(d);
-                    if (samples == null)
-                        datasets.put(d, samples = new HashSet<>());
-                    
-                    String t = s.substring(0, s.indexOf('['));
-                    if (!samples.contains(t)) {
-                        pw.print(s+"\t"+
-                                 rset.getInt("save")+"\t"+
-                                 rset.getLong("anno_id")+"\t"+
-                                 c);
+        final PrintWriter pw = res.getWriter();
+        try {
+            if (info != null && info.length() > 0) {
+                final int pos = info.indexOf('*');
+                PersistenceManager.Visitor<Annotation> visitor = 
+                    new PersistenceManager.Visitor<Annotation>() {
+                    public void visit (Annotation a) {
+                        pw.print(a.getSample()+"\t"+a.getSave()+"\t"
+                                 +a.getId()+"\t"+a.getCurator());
                         if (pos > 0)
-                            pw.print("\t"+d);
-                        
+                            pw.print("\t"+a.getDataset());
                         pw.println();
-                        samples.add(t);
+                    }
+                };
+
+                IQCAnnotationIndex idx = index;
+                if (idx != null) {
+                    List<Annotation> latest = pos > 0
+                        ? idx.getLatestByPrefix(info.substring(1, pos))
+                        : idx.getLatest(info.substring(1));
+                    int count = 0;
+                    for (Annotation a : latest) {
+                        if (after >= 0 && a.getId() >= after) {
+                            continue;
+                        }
+                        if (limit > 0 && count++ == limit) {
+                            break;
+                        }
+                        visitor.visit(a);
                     }
                 }
-                rset.close();
-                pstm.close();
+                else if (pos > 0) {
+                    pm.getLatestAnnotations
+                        (info.substring(1, pos), true, after, limit, visitor);
+                }
+                else {
+                    pm.getLatestAnnotations
+                        (info.substring(1), false, after, limit, visitor);
+                }
             }
             else {
-                Statement stm = con.createStatement();
-                ResultSet rset = stm.executeQuery
-                    ("select * from iqc_validator_annotation "
-                     //+"where comments = '148.168.40.121' "
-                     +"order by dataset, sample, annotation_time");
-                while (rset.next()) {
-                    pw.println(rset.getString("dataset")+"\t"+
-                               rset.getString("sample")+"\t"+
-                               rset.getInt("save")+"\t"+
-                               rset.getLong("anno_id"));
-                }
-                rset.close();
-                stm.close();
+                pm.getAnnotations(after, limit, new PersistenceManager
+                                  .Visitor<Annotation>() {
+                        public void visit (Annotation a) {
+                            pw.println(a.getDataset()+"\t"+
+                                       a.getSample()+"\t"+
+                                       a.getSave()+"\t"+
+                                       a.getId());
+                        }
+                    });
             }
         }
         catch (SQLException ex) {
             ex.printStackTrace(pw);
         }
-        finally {
-            if (con != null) {
-                try { con.close(); }  
-                catch (Exception ex) { ex.printStackTrace(); }
-            }
-        }
     }
 }
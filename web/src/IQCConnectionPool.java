@@ -0,0 +1,469 @@
+import java.io.PrintWriter;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.*;
+import javax.sql.DataSource;
+import java.sql.*;
+
+import tripod.iqc.service.PersistenceManager;
+
+/**
+ * Bounded pool of JDBC connections shared by the IQC servlets. A
+ * connection borrowed with getConnection() goes back to the pool when
+ * it's closed, and the statements prepared on it are cached (per
+ * connection) so that closing them only makes them available for the
+ * next prepareStatement() with the same SQL. Any JDBC url works, so the
+ * same pool runs against an embedded database for local testing.
+ *
+ * The pool is configured from the context parameters jdbc-iqc (url),
+ * jdbc-iqc-pool-size (maximum number of connections, 10 by default),
+ * and jdbc-iqc-pool-timeout (maximum time in ms to wait for a
+ * connection, 30000 by default).
+ *
+ * The servlets don't use the pool directly but through the context's
+ * PersistenceManager (see getPersistenceManager), which is tuned with
+ * jdbc-iqc-batch-size (annotation-batch-size is still accepted),
+ * jdbc-iqc-fetch-size, jdbc-iqc-isolation (one of the
+ * Connection.TRANSACTION_* values), and jdbc-iqc-write-behind (the
+ * number of writes that can be queued; 0 writes right away). Both are
+ * closed when the webapp stops (see IQCContextListener).
+ */
+public class IQCConnectionPool implements DataSource {
+    static final Logger logger =
+        Logger.getLogger(IQCConnectionPool.class.getName());
+
+    static final String ATTRIBUTE = IQCConnectionPool.class.getName();
+    static final String MANAGER = PersistenceManager.class.getName();
+
+    static final int DEFAULT_SIZE = 10;
+    static final long DEFAULT_TIMEOUT = 30000l;
+    // number of prepared statements cached per connection
+    static final int STATEMENT_CACHE = 32;
+    // waits longer than this (ns) are logged
+    static final long SLOW_WAIT = TimeUnit.SECONDS.toNanos(1);
+    // idle connections older than this (ms) are checked before use
+    static final long VALIDATE_IDLE = 30000l;
+
+    // physical connection and its statement cache
+    class Pooled {
+        final Connection con;
+        final Map<String, PreparedStatement> statements;
+        final Set<PreparedStatement> busy = Collections.newSetFromMap
+            (new IdentityHashMap<PreparedStatement, Boolean>());
+        long idleSince;
+
+        Pooled (Connection con) {
+            this.con = con;
+            statements = new LinkedHashMap<String, PreparedStatement>
+                (16, .75f, true) {
+                @Override
+                protected boolean removeEldestEntry
+                    (Map.Entry<String, PreparedStatement> eldest) {
+                    if (size () > STATEMENT_CACHE
+                        && !busy.contains(eldest.getValue())) {
+                        close (eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+    }
+
+    final String url;
+    final int size;
+    final long timeout;
+    final Semaphore permits;
+    final BlockingDeque<Pooled> idle = new LinkedBlockingDeque<Pooled>();
+
+    volatile boolean closed;
+
+    final AtomicLong borrowed = new AtomicLong ();
+    final AtomicLong created = new AtomicLong ();
+    final AtomicLong waitTime = new AtomicLong (); // ns
+    final AtomicLong statementHits = new AtomicLong ();
+    final AtomicLong statementMisses = new AtomicLong ();
+
+    public IQCConnectionPool (String url, int size, long timeout) {
+        if (size < 1) {
+            throw new IllegalArgumentException ("Bogus pool size: "+size);
+        }
+        this.url = url;
+        this.size = size;
+        this.timeout = timeout;
+        permits = new Semaphore (size, true);
+    }
+
+    /**
+     * Return the pool shared by all servlets of the context, creating
+     * it the first time.
+     */
+    public static IQCConnectionPool getInstance (ServletContext context)
+        throws ServletException {
+        synchronized (context) {
+            IQCConnectionPool pool =
+                (IQCConnectionPool)context.getAttribute(ATTRIBUTE);
+            if (pool == null) {
+                String url = context.getInitParameter("jdbc-iqc");
+                if (url == null) {
+                    throw new ServletException
+                        ("No jdbc-iqc parameter defined");
+                }
+
+                int size = DEFAULT_SIZE;
+                long timeout = DEFAULT_TIMEOUT;
+                try {
+                    String param =
+                        context.getInitParameter("jdbc-iqc-pool-size");
+                    if (param != null) {
+                        size = Integer.parseInt(param);
+                    }
+                    param = context.getInitParameter("jdbc-iqc-pool-timeout");
+                    if (param != null) {
+                        timeout = Long.parseLong(param);
+                    }
+                }
+                catch (NumberFormatException ex) {
+                    throw new ServletException
+                        ("Bogus connection pool parameter", ex);
+                }
+
+                pool = new IQCConnectionPool (url, size, timeout);
+                context.setAttribute(ATTRIBUTE, pool);
+                logger.info("## connection pool: "+pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Return the persistence manager shared by all servlets of the
+     * context, creating it (and the pool) the first time.
+     */
+    public static PersistenceManager getPersistenceManager
+        (ServletContext context) throws ServletException {
+        synchronized (context) {
+            PersistenceManager pm =
+                (PersistenceManager)context.getAttribute(MANAGER);
+            if (pm == null) {
+                IQCConnectionPool pool = getInstance (context);
+                pm = new PersistenceManager (pool);
+                // Connector/J only streams rows with this magic value
+                //  (without useCursorFetch)
+                if (pool.url.startsWith("jdbc:mysql:")) {
+                    pm.setFetchSize(Integer.MIN_VALUE);
+                }
+                try {
+                    String param =
+                        context.getInitParameter("jdbc-iqc-batch-size");
+                    if (param == null) { // its name before
+                        param = context.getInitParameter
+                            ("annotation-batch-size");
+                    }
+                    if (param != null) {
+                        pm.setBatchSize(Integer.parseInt(param));
+                    }
+                    param = context.getInitParameter("jdbc-iqc-fetch-size");
+                    if (param != null) {
+                        pm.setFetchSize(Integer.parseInt(param));
+                    }
+                    param = context.getInitParameter("jdbc-iqc-isolation");
+                    if (param != null) {
+                        pm.setIsolation(Integer.parseInt(param));
+                    }
+                    param = context.getInitParameter("jdbc-iqc-write-behind");
+                    if (param != null) {
+                        pm.setWriteBehind(Integer.parseInt(param));
+                    }
+                }
+                catch (NumberFormatException ex) {
+                    throw new ServletException
+                        ("Bogus persistence parameter", ex);
+                }
+                context.setAttribute(MANAGER, pm);
+                logger.info("## persistence: batch size="+pm.getBatchSize()
+                            +", fetch size="+pm.getFetchSize()
+                            +", isolation="+pm.getIsolation());
+            }
+            return pm;
+        }
+    }
+
+    public Connection getConnection () throws SQLException {
+        if (closed) {
+            throw new SQLException ("Connection pool is closed");
+        }
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                throw new SQLException
+                    ("Timed out waiting for a connection after "
+                     +timeout+"ms; "+this);
+            }
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException ("Interrupted waiting for connection");
+        }
+        finally {
+            long wait = System.nanoTime() - start;
+            waitTime.addAndGet(wait);
+            if (wait > SLOW_WAIT) {
+                logger.warning("Waited "+TimeUnit.NANOSECONDS.toMillis(wait)
+                               +"ms for a connection; "+this);
+            }
+        }
+
+        try {
+            Pooled p;
+            while ((p = idle.pollFirst()) != null) {
+                if (System.currentTimeMillis() - p.idleSince < VALIDATE_IDLE
+                    || isValid (p)) {
+                    break;
+                }
+                discard (p);
+            }
+
+            if (p == null) {
+                p = new Pooled (DriverManager.getConnection(url));
+                created.incrementAndGet();
+            }
+            borrowed.incrementAndGet();
+            return wrap (p);
+        }
+        catch (SQLException ex) {
+            permits.release();
+            throw ex;
+        }
+        catch (RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    boolean isValid (Pooled p) {
+        try {
+            return p.con.isValid(2);
+        }
+        catch (Throwable t) {
+            return false;
+        }
+    }
+
+    void discard (Pooled p) {
+        for (PreparedStatement pstm : p.statements.values()) {
+            close (pstm);
+        }
+        p.statements.clear();
+        try {
+            p.con.close();
+        }
+        catch (SQLException ex) {
+            logger.log(Level.WARNING, "Can't close connection", ex);
+        }
+    }
+
+    // return the connection to the pool (or drop it if it's bad)
+    void release (Pooled p) {
+        try {
+            if (closed || p.con.isClosed()) {
+                discard (p);
+            }
+            else {
+                if (!p.con.getAutoCommit()) {
+                    p.con.rollback();
+                    p.con.setAutoCommit(true);
+                }
+                p.busy.clear(); // statements the caller didn't close
+                p.idleSince = System.currentTimeMillis();
+                idle.offerFirst(p); // most recently used first
+                if (closed && idle.remove(p)) { // closed meanwhile
+                    discard (p);
+                }
+            }
+        }
+        catch (SQLException ex) {
+            logger.log(Level.WARNING, "Dropping bad connection", ex);
+            discard (p);
+        }
+        finally {
+            permits.release();
+        }
+    }
+
+    /*
+     * Logical connection handed out to the caller; close() returns it
+     * to the pool and prepareStatement(sql) goes through the cache.
+     */
+    Connection wrap (final Pooled p) {
+        return (Connection)Proxy.newProxyInstance
+            (Connection.class.getClassLoader(),
+             new Class<?>[]{Connection.class}, new InvocationHandler () {
+                boolean closed;
+
+                public Object invoke (Object proxy, Method m, Object[] args)
+                    throws Throwable {
+                    String name = m.getName();
+                    if (name.equals("close")) {
+                        if (!closed) {
+                            closed = true;
+                            release (p);
+                        }
+                        return null;
+                    }
+                    if (name.equals("isClosed")) {
+                        return closed || p.con.isClosed();
+                    }
+                    if (closed) {
+                        throw new SQLException ("Connection is closed");
+                    }
+                    if (name.equals("prepareStatement") && args.length == 1) {
+                        return prepare (p, (String)args[0]);
+                    }
+                    if (name.equals("equals")) {
+                        return proxy == args[0];
+                    }
+                    if (name.equals("hashCode")) {
+                        return System.identityHashCode(proxy);
+                    }
+                    try {
+                        return m.invoke(p.con, args);
+                    }
+                    catch (InvocationTargetException ex) {
+                        throw ex.getCause();
+                    }
+                }
+            });
+    }
+
+    PreparedStatement prepare (final Pooled p, String sql)
+        throws SQLException {
+        PreparedStatement pstm = p.statements.get(sql);
+        if (pstm == null || p.busy.contains(pstm)) {
+            statementMisses.incrementAndGet();
+            if (pstm != null) {
+                // same sql already in use on this connection
+                return p.con.prepareStatement(sql);
+            }
+            pstm = p.con.prepareStatement(sql);
+            p.statements.put(sql, pstm);
+        }
+        else {
+            statementHits.incrementAndGet();
+        }
+        p.busy.add(pstm);
+
+        final PreparedStatement target = pstm;
+        return (PreparedStatement)Proxy.newProxyInstance
+            (PreparedStatement.class.getClassLoader(),
+             new Class<?>[]{PreparedStatement.class}, new InvocationHandler () {
+                boolean closed;
+
+                public Object invoke (Object proxy, Method m, Object[] args)
+                    throws Throwable {
+                    String name = m.getName();
+                    if (name.equals("close")) {
+                        if (!closed) {
+                            closed = true;
+                            // keep the statement for the next caller
+                            try {
+                                target.clearParameters();
+                                target.clearBatch();
+                            }
+                            finally {
+                                p.busy.remove(target);
+                            }
+                        }
+                        return null;
+                    }
+                    if (name.equals("isClosed")) {
+                        return closed || target.isClosed();
+                    }
+                    if (closed) {
+                        throw new SQLException ("Statement is closed");
+                    }
+                    if (name.equals("equals")) {
+                        return proxy == args[0];
+                    }
+                    if (name.equals("hashCode")) {
+                        return System.identityHashCode(proxy);
+                    }
+                    try {
+                        return m.invoke(target, args);
+                    }
+                    catch (InvocationTargetException ex) {
+                        throw ex.getCause();
+                    }
+                }
+            });
+    }
+
+    static void close (Statement stm) {
+        try {
+            stm.close();
+        }
+        catch (SQLException ex) {
+            logger.log(Level.WARNING, "Can't close statement", ex);
+        }
+    }
+
+    /**
+     * Close the idle connections; connections borrowed before are
+     * closed when they're released, and no more can be borrowed.
+     */
+    public void close () {
+        closed = true;
+        for (Pooled p; (p = idle.pollFirst()) != null; ) {
+            discard (p);
+        }
+    }
+
+    public Connection getConnection (String user, String password)
+        throws SQLException {
+        throw new SQLFeatureNotSupportedException
+            ("Pooled connections all use the jdbc-iqc url");
+    }
+
+    public PrintWriter getLogWriter () { return null; }
+    public void setLogWriter (PrintWriter out) {}
+    public void setLoginTimeout (int seconds) {}
+    public int getLoginTimeout () { return 0; }
+    public Logger getParentLogger () { return logger; }
+
+    public <T> T unwrap (Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException ("Not a wrapper for "+iface);
+    }
+
+    public boolean isWrapperFor (Class<?> iface) {
+        return iface.isInstance(this);
+    }
+
+    public int getSize () { return size; }
+    public int getActive () { return size - permits.availablePermits(); }
+    public int getIdle () { return idle.size(); }
+    public int getWaiting () { return permits.getQueueLength(); }
+    public long getBorrowed () { return borrowed.get(); }
+    public long getCreated () { return created.get(); }
+    // total time (in ms) spent waiting for a connection
+    public long getWaitTime () {
+        return TimeUnit.NANOSECONDS.toMillis(waitTime.get());
+    }
+    public long getStatementHits () { return statementHits.get(); }
+    public long getStatementMisses () { return statementMisses.get(); }
+
+    public String toString () {
+        return "{size="+size+", active="+getActive()+", idle="+getIdle()
+            +", waiting="+getWaiting()+", borrowed="+getBorrowed()
+            +", created="+getCreated()+", waitTime="+getWaitTime()+"ms"
+            +", statementHits="+getStatementHits()
+            +", statementMisses="+getStatementMisses()+"}";
+    }
+}
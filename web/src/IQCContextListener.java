@@ -0,0 +1,57 @@
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.*;
+
+import tripod.iqc.service.PersistenceManager;
+
+/**
+ * Owns what the IQC servlets share through the context: the connection
+ * pool, its PersistenceManager, and the fit jobs. They're created when
+ * the webapp starts (or, if that fails, by the first servlet that
+ * needs them) and closed only when the webapp stops, so a servlet
+ * being unloaded doesn't pull them out from under the others.
+ */
+public class IQCContextListener implements ServletContextListener {
+    static final Logger logger =
+        Logger.getLogger(IQCContextListener.class.getName());
+
+    public void contextInitialized (ServletContextEvent event) {
+        try {
+            IQCFitJobs.getInstance(event.getServletContext());
+        }
+        catch (ServletException ex) {
+            // the servlets try again when they're initialized
+            logger.log(Level.SEVERE, "Can't initialize persistence", ex);
+        }
+    }
+
+    public void contextDestroyed (ServletContextEvent event) {
+        ServletContext context = event.getServletContext();
+        logger.info("shutting down "+context.getServletContextName()+"....");
+        synchronized (context) {
+            IQCFitJobs jobs =
+                (IQCFitJobs)context.getAttribute(IQCFitJobs.ATTRIBUTE);
+            if (jobs != null) {
+                jobs.shutdown();
+                context.removeAttribute(IQCFitJobs.ATTRIBUTE);
+            }
+
+            PersistenceManager pm = (PersistenceManager)context
+                .getAttribute(IQCConnectionPool.MANAGER);
+            if (pm != null) {
+                // write out whatever is queued before the pool goes away
+                pm.close();
+                context.removeAttribute(IQCConnectionPool.MANAGER);
+            }
+
+            IQCConnectionPool pool = (IQCConnectionPool)context
+                .getAttribute(IQCConnectionPool.ATTRIBUTE);
+            if (pool != null) {
+                logger.info("## connection pool: "+pool);
+                pool.close();
+                context.removeAttribute(IQCConnectionPool.ATTRIBUTE);
+            }
+        }
+    }
+}
@@ -4,6 +4,10 @@ import java.net.*;
 import java.util.*;
 import java.security.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -15,11 +19,34 @@ import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.apache.commons.fileupload.util.*;
 import org.apache.commons.fileupload.*;
 
+import tripod.iqc.service.PersistenceManager;
+
 
 public class IQCDatasetServlet extends HttpServlet {
     static final Logger logger = 
         Logger.getLogger(IQCDatasetServlet.class.getName());
 
+    // size of the direct buffers used to receive uploads
+    static final int BUFFER_SIZE = 1<<18;
+    // most direct buffers ever allocated
+    static final int BUFFERS = 16;
+
+    // direct memory is only freed by GC, so direct buffers are
+    //  allocated once and reused; past BUFFERS in use at once, heap
+    //  buffers are used instead
+    static final BlockingQueue<ByteBuffer> buffers =
+        new ArrayBlockingQueue<ByteBuffer>(BUFFERS);
+    static final AtomicInteger directBuffers = new AtomicInteger ();
+
+    // how long (in ms) a dataset listing is served from the cache
+    static final long LISTING_TTL = 60000l;
+
+    // bumped whenever a dataset or an annotation changes
+    static final AtomicLong listingVersion = new AtomicLong ();
+
+    // request attributes of Tomcat's sendfile support
+    static final String SENDFILE = "org.apache.tomcat.sendfile.";
+
     static {
         try {
             //Class.forName("oracle.jdbc.driver.OracleDriver");
@@ -33,7 +60,28 @@ public class IQCDatasetServlet extends HttpServlet {
     File datasetDir;
     ServletContext context;
     String iqcJdbc;
+    PersistenceManager pm;
+    IQCFitJobs jobs;
     String base;
+
+    // SHA1 of a dataset file; only valid for the file's current size
+    //  and modified time
+    static class Digest {
+        long length;
+        long lastModified;
+        String sha1;
+    }
+    ConcurrentMap<String, Digest> digests = 
+        new ConcurrentHashMap<String, Digest>();
+
+    // last dataset listing along with the listing version and time it
+    //  was created
+    static class Listing {
+        long version;
+        long created;
+        String text;
+    }
+    volatile Listing listing;
     
     @Override
     public void init (ServletConfig config) throws ServletException {
@@ -59,6 +107,8 @@ public class IQCDatasetServlet extends HttpServlet {
             }
 
             logger.info("## jdbc-iqc: "+iqcJdbc);
+            pm = IQCConnectionPool.getPersistenceManager(context);
+            jobs = IQCFitJobs.getInstance(context);
         }
         catch (Exception ex) {
             logger.log(Level.SEVERE, "Can't initialize servlet!", ex);
@@ -66,12 +116,9 @@ public class IQCDatasetServlet extends HttpServlet {
         }
     }
 
-    Connection getConnection () throws SQLException {
-        return DriverManager.getConnection(iqcJdbc);
-    }
-    
     @Override
     public void destroy () {
+        // the pool, pm, and jobs are shared; see IQCContextListener
         logger.info("shutting down "+context.getServletContextName()+"....");
     }
 
@@ -103,6 +150,10 @@ public class IQCDatasetServlet extends HttpServlet {
                          + item.getName() + " detected.");
                     // Process the input stream
                     out = saveFile (item);
+                    invalidateListing ();
+                    // fit it once here instead of on every client
+                    jobs.submit(item.getName(),
+                                new File (datasetDir, item.getName()));
                     logger.info("Successfully uploaded file \""
                                 +item.getName()+"\"");
                 }
@@ -132,24 +183,103 @@ public class IQCDatasetServlet extends HttpServlet {
         }
         
         File file = new File (dir, name);
-        byte[] buf = new byte[1024];
-        InputStream is = item.openStream();
-        DigestOutputStream dos = 
-            new DigestOutputStream (new FileOutputStream (file), md);
+        ReadableByteChannel in = Channels.newChannel(item.openStream());
+        FileChannel out = new FileOutputStream (file).getChannel();
         long size  = 0;
-        for (int nb; (nb = is.read(buf, 0, buf.length)) > 0; ) {
-            dos.write(buf, 0, nb);
-            size += nb;
+        ByteBuffer buf = getBuffer ();
+        try {
+            for (boolean eof = false; !eof; ) {
+                // fill up the buffer before writing it out
+                while (buf.hasRemaining()) {
+                    if (in.read(buf) < 0) {
+                        eof = true;
+                        break;
+                    }
+                }
+                buf.flip();
+                size += buf.remaining();
+                md.update(buf.duplicate());
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+                buf.clear();
+            }
+        }
+        finally {
+            releaseBuffer (buf);
+            out.close();
+            in.close();
+        }
+
+        String sha1 = hex (md.digest());
+        putDigest (file, sha1);
+        logger.info("### "+item.getName()+" ==>> "+file);
+
+        return new Object[]{file.getName(), size, sha1};
+    }
+
+    static ByteBuffer getBuffer () {
+        ByteBuffer buf = buffers.poll();
+        if (buf == null) {
+            buf = directBuffers.get() < BUFFERS
+                && directBuffers.incrementAndGet() <= BUFFERS
+                ? ByteBuffer.allocateDirect(BUFFER_SIZE)
+                : ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    static void releaseBuffer (ByteBuffer buf) {
+        if (buf.isDirect()) {
+            buffers.offer(buf);
         }
-        dos.close();
+    }
 
-        byte[] digest = md.digest();
+    static String hex (byte[] digest) {
         StringBuilder sb = new StringBuilder ();
         for (int i = 0; i < digest.length; ++i)
             sb.append(String.format("%1$02x", digest[i] & 0xff));
-        logger.info("### "+item.getName()+" ==>> "+file);
+        return sb.toString();
+    }
+
+    void putDigest (File file, String sha1) throws IOException {
+        Digest d = new Digest ();
+        d.length = file.length();
+        d.lastModified = file.lastModified();
+        d.sha1 = sha1;
+        digests.put(file.getCanonicalPath(), d);
+    }
+
+    /*
+     * Return the SHA1 of the file; it's the one computed on upload
+     * unless the file has since changed (or the servlet restarted), in
+     * which case it's computed again.
+     */
+    String getDigest (File file) throws Exception {
+        Digest d = digests.get(file.getCanonicalPath());
+        if (d != null && d.length == file.length()
+            && d.lastModified == file.lastModified()) {
+            return d.sha1;
+        }
 
-        return new Object[]{file.getName(), size, sb.toString()};
+        MessageDigest md = MessageDigest.getInstance("SHA1");
+        FileChannel fc = new FileInputStream (file).getChannel();
+        ByteBuffer buf = getBuffer ();
+        try {
+            while (fc.read(buf) >= 0) {
+                buf.flip();
+                md.update(buf);
+                buf.clear();
+            }
+        }
+        finally {
+            releaseBuffer (buf);
+            fc.close();
+        }
+        String sha1 = hex (md.digest());
+        putDigest (file, sha1);
+        return sha1;
     }
 
     @Override
@@ -171,15 +301,16 @@ public class IQCDatasetServlet extends HttpServlet {
         
         String name = info.substring(1);
         File file = new File (datasetDir, name);
-        if (file.exists()) {
-            InputStream is = new FileInputStream (file);
-            OutputStream out = res.getOutputStream();
-            byte[] buf = new byte[1024];
-            for (int nb; (nb = is.read(buf, 0, buf.length)) > 0; ) {
-                out.write(buf, 0, nb);
+        if (file.isFile()) {
+            try {
+                sendFile (req, res, file);
+            }
+            catch (IOException ex) {
+                throw ex;
+            }
+            catch (Exception ex) {
+                throw new ServletException (ex);
             }
-            is.close();
-            out.close();
         }
         else {
             res.getWriter().println("Dataset \""+name+"\" not found!");
@@ -187,6 +318,160 @@ public class IQCDatasetServlet extends HttpServlet {
         }
     }
 
+    /*
+     * Send the file (or the requested range of it) with its SHA1 as
+     * a strong ETag; nothing is sent if the client already has it.
+     */
+    void sendFile (HttpServletRequest req, HttpServletResponse res,
+                   File file) throws Exception {
+        long length = file.length();
+        long modified = file.lastModified();
+        String etag = "\""+getDigest (file)+"\"";
+
+        res.setHeader("ETag", etag);
+        res.setDateHeader("Last-Modified", modified);
+        res.setHeader("Accept-Ranges", "bytes");
+        // datasets can be replaced under the same name, so caches
+        //  must check back with us before using their copy
+        res.setHeader("Cache-Control", "no-cache");
+
+        String inm = req.getHeader("If-None-Match");
+        if (inm != null ? matches (inm, etag)
+            : notModifiedSince (req, "If-Modified-Since", modified)) {
+            res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        String type = context.getMimeType(file.getName());
+        res.setContentType(type != null ? type : "application/octet-stream");
+
+        long start = 0l, end = length - 1;
+        String range = req.getHeader("Range");
+        String ifRange = req.getHeader("If-Range");
+        if (range != null && (ifRange == null || ifRange.equals(etag)
+                              || (!ifRange.startsWith("\"")
+                                  && notModifiedSince 
+                                  (req, "If-Range", modified)))) {
+            long[] r = parseRange (range, length);
+            if (r == null) {
+                // multiple or bogus ranges; send the whole file
+            }
+            else if (r.length == 0) {
+                res.setHeader("Content-Range", "bytes */"+length);
+                res.sendError(HttpServletResponse
+                              .SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            else {
+                start = r[0];
+                end = r[1];
+                res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                res.setHeader("Content-Range", "bytes "+start+"-"+end
+                              +"/"+length);
+            }
+        }
+        // setContentLength() only takes an int
+        res.setHeader("Content-Length", String.valueOf(end - start + 1));
+
+        if ("HEAD".equals(req.getMethod())) {
+            return;
+        }
+
+        if (Boolean.TRUE.equals(req.getAttribute(SENDFILE+"support"))) {
+            // let the container send it straight from the file
+            req.setAttribute(SENDFILE+"filename", file.getCanonicalPath());
+            req.setAttribute(SENDFILE+"start", start);
+            req.setAttribute(SENDFILE+"end", end + 1);
+            return;
+        }
+
+        FileChannel fc = new FileInputStream (file).getChannel();
+        try {
+            WritableByteChannel out = 
+                Channels.newChannel(res.getOutputStream());
+            // transferTo() might send fewer bytes than asked for
+            for (long pos = start; pos <= end; ) {
+                long nb = fc.transferTo(pos, end - pos + 1, out);
+                if (nb <= 0) {
+                    break; // file truncated
+                }
+                pos += nb;
+            }
+            out.close();
+        }
+        finally {
+            fc.close();
+        }
+    }
+
+    // does the If-None-Match header value match etag?
+    static boolean matches (String header, String etag) {
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // is modified (in ms) no later than the date in the given header?
+    static boolean notModifiedSince (HttpServletRequest req, 
+                                     String header, long modified) {
+        try {
+            long since = req.getDateHeader(header);
+            // http dates only have second resolution
+            return since >= 0 && modified / 1000 <= since / 1000;
+        }
+        catch (IllegalArgumentException ex) {
+            return false; // bogus date
+        }
+    }
+
+    /*
+     * Parse a single byte range (bytes=first-last, bytes=first-, or
+     * bytes=-suffix) into its first and last byte offsets; return null
+     * if the header isn't a single range we understand, and an empty
+     * array if the range lies outside of the file.
+     */
+    static long[] parseRange (String range, long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+
+        String spec = range.substring(6).trim();
+        int pos = spec.indexOf('-');
+        if (pos < 0) {
+            return null;
+        }
+
+        try {
+            String first = spec.substring(0, pos).trim();
+            String last = spec.substring(pos+1).trim();
+            long start, end;
+            if (first.length() == 0) {
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    return new long[0];
+                }
+                start = Math.max(0l, length - suffix);
+                end = length - 1;
+            }
+            else {
+                start = Long.parseLong(first);
+                end = last.length() == 0 
+                    ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+                if (end < start) {
+                    return start < length ? null : new long[0];
+                }
+            }
+            return start < length ? new long[]{start, end} : new long[0];
+        }
+        catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
     @Override
     public void doDelete (HttpServletRequest req, HttpServletResponse res)
         throws ServletException, IOException {
@@ -200,7 +485,16 @@ public class IQCDatasetServlet extends HttpServlet {
         String name = info.substring(1);
         File file = new File (datasetDir, name);
         if (file.exists()) {
+            digests.remove(file.getCanonicalPath());
             file.delete();
+            invalidateListing ();
+            try {
+                jobs.remove(name);
+            }
+            catch (SQLException ex) {
+                logger.log(Level.WARNING,
+                           "Can't delete fit results of "+name, ex);
+            }
             res.getWriter().println(name+" deleted!");
         }
         else {
@@ -209,34 +503,42 @@ public class IQCDatasetServlet extends HttpServlet {
         }
     }
 
+    // called whenever the listing might have changed
+    static void invalidateListing () {
+        listingVersion.incrementAndGet();
+    }
+
     void listDatasets (PrintWriter pw) throws Exception {
-        Connection con = getConnection ();
-        try {
-            PreparedStatement pstm = con.prepareStatement
-                ("select count(*) from iqc_validator_annotation where "
-                 +"dataset = ?");
-
-            for (File f : getFilesRecursive (datasetDir)) {
-                String name = f.getCanonicalPath();
-                int pos = name.indexOf(base);
-                if (pos >= 0) {
-                    name = name.substring(base.length()+1);
-                }
-                pstm.setString(1, name);
-                ResultSet rset = pstm.executeQuery();
-                if (rset.next()) {
-                    pw.println(name+"\t"+rset.getInt(1));
-                }
-                else {
-                    pw.println(name);
-                }
-                rset.close();
-            }
-            pstm.close();
+        Listing l = listing;
+        if (l == null || l.version != listingVersion.get()
+            || System.currentTimeMillis() - l.created > LISTING_TTL) {
+            l = new Listing ();
+            // read the version first so that a change made while the
+            //  listing is created makes it stale
+            l.version = listingVersion.get();
+            l.created = System.currentTimeMillis();
+            l.text = createListing ();
+            listing = l;
         }
-        finally {
-            con.close();
+        pw.print(l.text);
+    }
+
+    String createListing () throws Exception {
+        Map<String, Integer> counts = pm.getAnnotationCounts();
+
+        StringWriter sw = new StringWriter ();
+        PrintWriter pw = new PrintWriter (sw);
+        for (File f : getFilesRecursive (datasetDir)) {
+            String name = f.getCanonicalPath();
+            int pos = name.indexOf(base);
+            if (pos >= 0) {
+                name = name.substring(base.length()+1);
+            }
+            Integer count = counts.get(name);
+            pw.println(name+"\t"+(count != null ? count : 0));
         }
+        pw.close();
+        return sw.toString();
     }
 
     static List<File> getFilesRecursive (File file) {
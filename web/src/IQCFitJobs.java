@@ -0,0 +1,314 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.*;
+import java.sql.*;
+import java.security.*;
+
+import tripod.iqc.core.*;
+import tripod.iqc.service.PersistenceManager;
+import static tripod.iqc.service.PersistenceManager.FitResult;
+
+/**
+ * Fits datasets on the server so that every curator of a plate gets
+ * the same ranked results without fitting it again. A job reads a
+ * dataset file (CSV or text, which is what gets uploaded), fits each
+ * sample with LeastSquaresEstimator (with its default settings, which
+ * is what IQCValidator uses) through a BatchEstimator, and replaces
+ * the dataset's fit results in the database. Once all of them are
+ * saved, the SHA1 of the file is recorded so that clients can tell
+ * which version of the dataset the results are of. Jobs run one at a
+ * time; the samples of a job are fitted in parallel on fit-threads
+ * threads (all processors by default). There's one instance per
+ * webapp (see getInstance).
+ */
+public class IQCFitJobs {
+    static final Logger logger =
+        Logger.getLogger(IQCFitJobs.class.getName());
+
+    static final String ATTRIBUTE = IQCFitJobs.class.getName();
+
+    // number of samples whose results are saved together
+    static final int SAVE_SAMPLES = 50;
+
+    public enum Status {
+        Queued,
+        Running,
+        Failed
+    }
+
+    public class Job implements Runnable {
+        final String dataset;
+        final File file;
+        volatile Status status = Status.Queued;
+        volatile int samples, errors;
+        volatile String message;
+        long started, finished;
+
+        Job (String dataset, File file) {
+            this.dataset = dataset;
+            this.file = file;
+        }
+
+        public String getDataset () { return dataset; }
+        public Status getStatus () { return status; }
+        public int getSamples () { return samples; }
+        public int getErrors () { return errors; }
+        public String getMessage () { return message; }
+
+        public void run () {
+            status = Status.Running;
+            started = System.currentTimeMillis();
+            try {
+                fit ();
+                pm.flush();
+                finished = System.currentTimeMillis();
+                logger.info(dataset+": "+samples+" sample(s) fitted in "
+                            +(finished-started)+"ms; "+errors
+                            +" error(s)");
+                jobs.remove(dataset, this);
+            }
+            catch (Exception ex) {
+                logger.log(Level.SEVERE, "Can't fit "+dataset, ex);
+                message = String.valueOf(ex.getMessage());
+                status = Status.Failed;
+            }
+        }
+
+        void fit () throws Exception {
+            // a newer file queues another job, so this is what's fitted
+            String sha1 = digest (file);
+            pm.deleteFitResults(dataset);
+
+            // same cache keys as the client computes
+            final LeastSquaresEstimator keys = new LeastSquaresEstimator ();
+
+            final List<FitResult> results = new ArrayList<FitResult>();
+            final int[] pending = new int[1];
+            final SQLException[] error = new SQLException[1];
+            BatchEstimator.Listener listener =
+                new BatchEstimator.Listener () {
+                    public void estimated (BatchEstimator.Batch b) {
+                        ++samples;
+                        if (b.getError() != null) {
+                            ++errors;
+                            logger.warning(dataset+": "
+                                           +b.getSample().getName()+": "
+                                           +b.getError().getMessage());
+                            return;
+                        }
+                        if (error[0] != null) {
+                            return; // the job fails anyway
+                        }
+                        String key = keys.getCacheKey
+                            (b.getSample().getMedianMeasures(), 0);
+                        for (Estimator.Result r : b.getResults()) {
+                            FitResult fr = getFitResult
+                                (dataset, b.getIndex(), key, r);
+                            if (fr != null) {
+                                results.add(fr);
+                            }
+                        }
+                        if (++pending[0] == SAVE_SAMPLES) {
+                            try {
+                                pm.saveFitResults
+                                    (new ArrayList<FitResult>(results));
+                            }
+                            catch (SQLException ex) {
+                                error[0] = ex;
+                            }
+                            results.clear();
+                            pending[0] = 0;
+                        }
+                    }
+                };
+
+            String name = file.getName().toLowerCase();
+            if (name.endsWith(".csv")) {
+                MappedCsvReader reader = new MappedCsvReader (file);
+                try {
+                    batch.run(reader, listener);
+                }
+                finally {
+                    reader.close();
+                }
+            }
+            else {
+                InputStream is = new FileInputStream (file);
+                try {
+                    batch.run(new TxtReader (is), listener);
+                }
+                finally {
+                    is.close();
+                }
+            }
+
+            if (error[0] != null) {
+                throw error[0];
+            }
+            pm.saveFitResults(results);
+            // the results are only marked complete if all of them have
+            //  been saved (they might have been queued)
+            pm.flush();
+            pm.saveFitDigest(dataset, sha1);
+        }
+
+        public String toString () {
+            return dataset+"\t"+status+"\t"+samples+"\t"+errors
+                +(message != null ? "\t"+message : "");
+        }
+    }
+
+    final PersistenceManager pm;
+    final BatchEstimator batch;
+    final ExecutorService executor = Executors.newSingleThreadExecutor
+        (new ThreadFactory () {
+                public Thread newThread (Runnable r) {
+                    Thread t = new Thread (r, "IQCFitJobs");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    // queued, running, and failed jobs
+    final ConcurrentMap<String, Job> jobs =
+        new ConcurrentSkipListMap<String, Job>();
+
+    IQCFitJobs (PersistenceManager pm, int threads) {
+        this.pm = pm;
+        batch = new BatchEstimator
+            (new BatchEstimator.EstimatorFactory () {
+                    public Estimator createEstimator () {
+                        return new LeastSquaresEstimator ();
+                    }
+                }, threads);
+    }
+
+    public static IQCFitJobs getInstance (ServletContext context)
+        throws ServletException {
+        synchronized (context) {
+            IQCFitJobs jobs = (IQCFitJobs)context.getAttribute(ATTRIBUTE);
+            if (jobs == null) {
+                PersistenceManager pm =
+                    IQCConnectionPool.getPersistenceManager(context);
+                try {
+                    pm.createFitResultTable();
+                }
+                catch (SQLException ex) {
+                    throw new ServletException (ex);
+                }
+
+                int threads = Runtime.getRuntime().availableProcessors();
+                String param = context.getInitParameter("fit-threads");
+                if (param != null) {
+                    try {
+                        threads = Integer.parseInt(param);
+                    }
+                    catch (NumberFormatException ex) {
+                        logger.warning("Bogus fit-threads: "+param);
+                    }
+                }
+                logger.info("## fit threads: "+threads);
+
+                jobs = new IQCFitJobs (pm, threads);
+                context.setAttribute(ATTRIBUTE, jobs);
+            }
+            return jobs;
+        }
+    }
+
+    /**
+     * Queue a job to (re)fit dataset from file unless one is already
+     * queued. A job that's running might have read an older file, so
+     * another one is queued after it.
+     */
+    public Job submit (String dataset, File file) {
+        Job job = new Job (dataset, file);
+        for (Job j; (j = jobs.putIfAbsent(dataset, job)) != null; ) {
+            if (j.status == Status.Queued) {
+                return j;
+            }
+            if (jobs.replace(dataset, j, job)) {
+                break;
+            }
+        }
+        executor.execute(job);
+        logger.info(dataset+": fit job queued");
+        return job;
+    }
+
+    // queued, running, or failed job of dataset; null if there's none
+    public Job getJob (String dataset) {
+        return jobs.get(dataset);
+    }
+
+    public Collection<Job> getJobs () {
+        return jobs.values();
+    }
+
+    /**
+     * Forget about dataset and its fit results
+     */
+    public void remove (String dataset) throws SQLException {
+        jobs.remove(dataset);
+        pm.deleteFitResults(dataset);
+    }
+
+    public void shutdown () {
+        executor.shutdownNow();
+        batch.shutdown();
+    }
+
+    /**
+     * Fit result of r to be stored for the sample at index of dataset
+     * whose fit cache key is key; null if r's configuration can't be
+     * represented as a bit vector.
+     */
+    public static FitResult getFitResult (String dataset, int index,
+                                          String key, Estimator.Result r) {
+        int[] config = r.getConfig();
+        if (config.length > 64) {
+            return null;
+        }
+        long bits = 0l;
+        for (int i = 0; i < config.length; ++i) {
+            if (config[i] > 0) {
+                bits |= 1l << i;
+            }
+        }
+
+        FitModel model = r.getModel();
+        Double score = r.getScore();
+        Double halflife = r.getHalflife();
+        return new FitResult
+            (dataset, index, r.getSample().getName(), key, r.getRank(),
+             config.length, bits, value (model, "Slope"),
+             value (model, "SlopeStdErr"), value (model, "Intercept"),
+             value (model, "InterceptStdErr"), value (model, "MSE"),
+             value (model, "r^2"), score != null ? score : Double.NaN,
+             halflife != null ? halflife : Double.NaN);
+    }
+
+    // hex encoded SHA1 of file; same as IQCDatasetServlet's ETag
+    static String digest (File file) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA1");
+        InputStream is = new DigestInputStream
+            (new FileInputStream (file), md);
+        try {
+            byte[] buf = new byte[1<<16];
+            while (is.read(buf, 0, buf.length) > 0)
+                ;
+        }
+        finally {
+            is.close();
+        }
+        return IQCDatasetServlet.hex(md.digest());
+    }
+
+    static double value (FitModel model, String name) {
+        FitModel.Variable var = model.getVariable(name);
+        return var != null ? var.getValue() : Double.NaN;
+    }
+}
@@ -0,0 +1,156 @@
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.*;
+import javax.servlet.http.*;
+import java.sql.*;
+
+import tripod.iqc.service.PersistenceManager;
+import static tripod.iqc.service.PersistenceManager.FitResult;
+
+/**
+ * Fit results of the datasets as fitted by the server (see
+ * IQCFitJobs). A dataset is fitted when it's uploaded or when it's
+ * POSTed here; that's also how datasets uploaded before the server
+ * fitted them are backfilled. GET returns one line per result, ordered
+ * by sample (position in the dataset) and rank:
+ *
+ *   index, sample, key, rank, measures, config, slope, slope stderr,
+ *   intercept, intercept stderr, MSE, r^2, score, t1/2
+ *
+ * where key is the fit cache key of the sample (see ResultCache),
+ * config is the bit vector of the measures (out of measures) that went
+ * into the fit, and missing values are NaN. The SHA1 of the dataset
+ * file that was fitted is sent as the ETag. While a dataset is being
+ * fitted, 202 is returned along with the status of its job; 404 is
+ * returned if it hasn't been fitted. Without a dataset, the queued,
+ * running, and failed jobs are listed.
+ */
+public class IQCFitServlet extends HttpServlet {
+    private static final long serialVersionUID = 0x3c8e51d7a2f6409bl;
+
+    static final Logger logger =
+        Logger.getLogger(IQCFitServlet.class.getName());
+
+    File datasetDir;
+    PersistenceManager pm;
+    IQCFitJobs jobs;
+    ServletContext context;
+
+    @Override
+    public void init (ServletConfig config) throws ServletException {
+        context = config.getServletContext();
+        try {
+            String param = context.getInitParameter("dataset-dir");
+            if (param == null) {
+                throw new ServletException
+                    ("No dataset-dir parameter defined!");
+            }
+            datasetDir = new File (param);
+
+            pm = IQCConnectionPool.getPersistenceManager(context);
+            jobs = IQCFitJobs.getInstance(context);
+        }
+        catch (Exception ex) {
+            logger.log(Level.SEVERE, "Can't initialize servlet!", ex);
+            throw new ServletException (ex);
+        }
+    }
+
+    @Override
+    public void destroy () {
+        // the pool, pm, and jobs are shared; see IQCContextListener
+        logger.info("shutting down "+context.getServletContextName()+"....");
+    }
+
+    @Override
+    public void doPost (HttpServletRequest req, HttpServletResponse res)
+        throws ServletException, IOException {
+        String info = req.getPathInfo();
+        if (info == null || info.length() <= 1) {
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                          "No dataset specified");
+            return;
+        }
+
+        String dataset = info.substring(1);
+        File file = new File (datasetDir, dataset);
+        if (!file.isFile()) {
+            res.sendError(HttpServletResponse.SC_NOT_FOUND,
+                          "Dataset \""+dataset+"\" not found!");
+            return;
+        }
+
+        IQCFitJobs.Job job = jobs.submit(dataset, file);
+        res.setStatus(HttpServletResponse.SC_ACCEPTED);
+        res.getWriter().println(job);
+    }
+
+    @Override
+    public void doGet (HttpServletRequest req, HttpServletResponse res)
+        throws ServletException, IOException {
+        String info = req.getPathInfo();
+        if (info == null || info.length() <= 1) {
+            PrintWriter pw = res.getWriter();
+            for (IQCFitJobs.Job job : jobs.getJobs()) {
+                pw.println(job);
+            }
+            return;
+        }
+
+        String dataset = info.substring(1);
+        IQCFitJobs.Job job = jobs.getJob(dataset);
+        if (job != null) {
+            if (job.getStatus() == IQCFitJobs.Status.Failed) {
+                res.setStatus
+                    (HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+            else {
+                res.setStatus(HttpServletResponse.SC_ACCEPTED);
+            }
+            res.getWriter().println(job);
+            return;
+        }
+
+        String sha1;
+        try {
+            sha1 = pm.getFitDigest(dataset);
+        }
+        catch (SQLException ex) {
+            logger.log(Level.SEVERE, "Can't get fit digest of "
+                       +dataset, ex);
+            res.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                          ex.getMessage());
+            return;
+        }
+        if (sha1 == null) {
+            res.sendError(HttpServletResponse.SC_NOT_FOUND,
+                          "Dataset \""+dataset+"\" hasn't been fitted!");
+            return;
+        }
+
+        res.setHeader("ETag", "\""+sha1+"\"");
+        final PrintWriter pw = res.getWriter();
+        try {
+            pm.getFitResults(dataset, new PersistenceManager
+                             .Visitor<FitResult>() {
+                    public void visit (FitResult r) {
+                        pw.println(r.getIndex()+"\t"+r.getSample()+"\t"
+                                   +r.getKey()+"\t"+r.getRank()+"\t"
+                                   +r.getSize()+"\t"+r.getConfig()+"\t"
+                                   +r.getSlope()+"\t"+r.getSlopeStdErr()
+                                   +"\t"+r.getIntercept()+"\t"
+                                   +r.getInterceptStdErr()+"\t"
+                                   +r.getMSE()+"\t"+r.getR2()+"\t"
+                                   +r.getScore()+"\t"+r.getHalflife());
+                    }
+                });
+        }
+        catch (SQLException ex) {
+            ex.printStackTrace(pw);
+        }
+    }
+}